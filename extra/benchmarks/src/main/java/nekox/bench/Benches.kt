@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.bench
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.runBlocking
+import nekox.TdEnv
+import nekox.core.client.*
+import nekox.core.utils.*
+import td.TdApi
+import td.TdApi.*
+import td.TdNative
+import java.nio.file.Files
+import java.util.concurrent.Semaphore
+
+/**
+ * 供 JMH 基准 (Java) 调用的阻塞封装.
+ */
+object Benches {
+
+    /**
+     * 换上新的 TdFakeNative, 数据目录放到临时目录.
+     */
+    @JvmStatic
+    fun fake(): TdFakeNative {
+
+        TdEnv.ROOT_PATH = Files.createTempDirectory("nekox-bench").toFile()
+
+        return TdFakeNative().also { TdNative.client = it }
+
+    }
+
+    @JvmStatic
+    fun <C : TdClient> start(client: C): C {
+
+        client.start()
+
+        runBlocking { client.waitForLogin() }
+
+        return client
+
+    }
+
+    @JvmStatic
+    fun stop(client: TdClient) {
+
+        client.stop()
+
+        runBlocking { client.waitForClose() }
+
+    }
+
+    @JvmStatic
+    fun sync(client: TdClient, function: TdApi.Function): Object = runBlocking { client.sync<Object>(function) }
+
+    @JvmStatic
+    fun send(client: TdClient, function: TdApi.Function): Object {
+
+        val result = CompletableDeferred<Object>()
+
+        client.send<Object>(function) { result.complete(it) } onError { result.completeExceptionally(it) }
+
+        return runBlocking { result.await() }
+
+    }
+
+    @JvmStatic
+    fun sendAsync(client: TdClient, function: TdApi.Function): Object = runBlocking { client.sendAsync<Object>(function, null).await() }
+
+    /**
+     * 替身按 GetUser 应答 [count] 个用户, 并推送对应的 UpdateUser.
+     */
+    @JvmStatic
+    fun users(fake: TdFakeNative, count: Int) {
+
+        fake.respond<GetUser> { fake.me }
+
+        for (userId in 1..count) fake.push(UpdateUser(User(userId, "User", "", "", "", UserStatusEmpty(), null, false, false, false, false, "", false, true, UserTypeRegular(), "en")))
+
+    }
+
+    /**
+     * 常见更新的混合, 最后一条在旧的 is 判断链中排在末尾附近.
+     */
+    @JvmStatic
+    fun updateMix(fake: TdFakeNative): Array<Object> = arrayOf(
+            fake.newMessage(2L, 2, "hello"),
+            UpdateUserStatus(2, UserStatusOnline(0)),
+            UpdateChatReadInbox(2L, 1L, 0),
+            UpdateMessageViews(-1002L, 1L, 10),
+            UpdateChatLastMessage(2L, fake.textMessage(2L, 2, "hello"), 1L),
+            UpdateChatOnlineMemberCount(-1002L, 10),
+            UpdateNewCallbackQuery(1L, 2, 2L, 1L, 0L, CallbackQueryPayloadData(byteArrayOf(1, 2)))
+    )
+
+    /**
+     * 依次分发 [updates], 只测分发本身, 不经过接收线程.
+     */
+    @JvmStatic
+    fun dispatchTable(handler: TdAbsHandler, updates: Array<Object>) = runBlocking {
+
+        for (update in updates) {
+
+            val index = TdUpdates.indexOf(update.constructor)
+
+            if (index != -1) TdUpdates.dispatch(handler, index, update)
+
+        }
+
+    }
+
+    @JvmStatic
+    fun dispatchLegacy(handler: TdAbsHandler, updates: Array<Object>) = runBlocking {
+
+        for (update in updates) legacyDispatch(handler, update)
+
+    }
+
+}
+
+/**
+ * MessageFactory 的几种典型构建方式, 只构建请求, 不发送.
+ */
+object Messages {
+
+    @JvmStatic
+    fun plain(handler: TdAbsHandler, chatId: Long) = handler make "Hello, world" mkSend chatId
+
+    @JvmStatic
+    fun html(handler: TdAbsHandler, chatId: Long) = handler makeHtml "<b>Hello</b>, <i>world</i>" mkSend chatId
+
+    @JvmStatic
+    fun keyboard(handler: TdAbsHandler, chatId: Long) = handler make "Choose" withMarkup inlineButton {
+
+        dataLine("A", 1, 0, byteArrayOf(1))
+
+        newLine {
+
+            dataButton("B", 1, 1, byteArrayOf(2))
+
+            urlButton("C", "https://t.me")
+
+        }
+
+    } mkSend chatId
+
+}
+
+/**
+ * 计数收到的新消息, 供基准等待分发完成.
+ */
+class CountingHandler : TdHandler() {
+
+    private val arrived = Semaphore(0)
+
+    override suspend fun onNewMessage(userId: Int, chatId: Long, message: Message) {
+
+        arrived.release()
+
+    }
+
+    fun await(count: Int) = arrived.acquire(count)
+
+}
+
+/**
+ * 注册了 ping / echo 两个命令的 Bot.
+ */
+class BenchBot : TdBot("1:bench") {
+
+    var calls = 0L
+
+    override fun onLoad() {
+
+        initFunction("ping", "echo")
+
+    }
+
+    override suspend fun onFunction(userId: Int, chatId: Long, message: Message, function: String, param: String, params: Array<String>, originParams: Array<String>) {
+
+        calls += params.size + 1
+
+    }
+
+    /**
+     * 直接调用 onNewMessage 解析命令, 不经过接收线程.
+     */
+    fun parse(messages: Array<Message>) = runBlocking {
+
+        for (message in messages) {
+
+            try {
+
+                onNewMessage(message.senderUserId, message.chatId, message)
+
+            } catch (ignored: TdAbsHandler.Finish) {
+            }
+
+        }
+
+    }
+
+}
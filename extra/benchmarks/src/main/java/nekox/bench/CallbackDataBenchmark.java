@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.bench;
+
+import cn.hutool.core.util.ZipUtil;
+import nekox.core.Fn;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fn.mkData / Fn.readData 回调数据的编码与解码, 解码同 TdBot.handleNewCallbackQuery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CallbackDataBenchmark {
+
+    @Param({"0", "8", "24"})
+    public int size;
+
+    private byte[] first;
+
+    private byte[] second;
+
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+
+        Random random = new Random(size);
+
+        first = new byte[size];
+        second = new byte[size];
+
+        // -1 是分隔符, 数据中不能出现.
+
+        for (int index = 0; index < size; index++) {
+
+            first[index] = (byte) random.nextInt(100);
+            second[index] = (byte) random.nextInt(100);
+
+        }
+
+        encoded = Fn.mkData(1, 2, first, second);
+
+    }
+
+    @Benchmark
+    public byte[] encode() {
+
+        return Fn.mkData(1, 2, first, second);
+
+    }
+
+    @Benchmark
+    public byte[][] decode() {
+
+        byte[] data = encoded;
+
+        if (data[0] == 120 && data[1] == -38) data = ZipUtil.unZlib(data);
+
+        return Fn.readData(data);
+
+    }
+
+}
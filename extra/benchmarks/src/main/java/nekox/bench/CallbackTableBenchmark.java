@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.bench;
+
+import nekox.core.client.TdCallback;
+import nekox.core.client.TdCallbackTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求回调表: TdCallbackTable 与 ConcurrentHashMap&lt;Long, TdCallback&gt; 的对比.
+ *
+ * 每次操作登记一个新请求并移除 inFlight 个之前的请求, 5000 约为 50k 请求每秒, 平均 100ms 响应时的在途数量.
+ * 加上 -prof gc 查看每次请求的分配.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CallbackTableBenchmark {
+
+    @Param({"64", "5000"})
+    public int inFlight;
+
+    private final TdCallback<?>[] callbacks = new TdCallback<?>[8192];
+
+    private final TdCallbackTable table = new TdCallbackTable();
+
+    private final ConcurrentHashMap<Long, TdCallback<?>> map = new ConcurrentHashMap<>();
+
+    private long requestId;
+
+    @Setup
+    public void setup() {
+
+        for (int index = 0; index < callbacks.length; index++) callbacks[index] = new TdCallback<>(0, null);
+
+        for (requestId = 1; requestId <= inFlight; requestId++) {
+
+            table.set(requestId, callbacks[(int) requestId & 8191]);
+
+            map.put(requestId, callbacks[(int) requestId & 8191]);
+
+        }
+
+    }
+
+    @Benchmark
+    public TdCallback<?> table() {
+
+        long id = requestId++;
+
+        table.set(id, callbacks[(int) id & 8191]);
+
+        return table.remove(id - inFlight);
+
+    }
+
+    @Benchmark
+    public TdCallback<?> concurrentHashMap() {
+
+        long id = requestId++;
+
+        map.put(id, callbacks[(int) id & 8191]);
+
+        return map.remove(id - inFlight);
+
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.bench;
+
+import org.openjdk.jmh.annotations.*;
+import td.TdApi;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TdBot.onNewMessage 的命令解析与查找.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBenchmark {
+
+    private static final int BATCH = 100;
+
+    @Param({"/ping", "/echo a b  c", "/echo@nekox_bot hello", "/unknown x", "hello world"})
+    public String text;
+
+    private BenchBot bot;
+
+    private TdApi.Message[] messages;
+
+    @Setup
+    public void setup() {
+
+        TdFakeNative fake = Benches.fake();
+
+        bot = Benches.start(new BenchBot());
+
+        messages = new TdApi.Message[BATCH];
+
+        Arrays.fill(messages, fake.textMessage(2L, 2, text, 1L));
+
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        Benches.stop(bot);
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long parse() {
+
+        bot.parse(messages);
+
+        return bot.getCalls();
+
+    }
+
+}
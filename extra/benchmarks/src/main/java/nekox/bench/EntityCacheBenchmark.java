@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.bench;
+
+import nekox.core.ConcurrentLongObjectMap;
+import nekox.core.raw.CachesKt;
+import nekox.core.client.TdClient;
+import org.openjdk.jmh.annotations.*;
+import td.TdApi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 实体缓存: getUser 经过 TDLib 替身往返与由缓存应答的对比, 以及 ConcurrentLongObjectMap 与
+ * ConcurrentHashMap&lt;Long, Object&gt; 的随机查询.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntityCacheBenchmark {
+
+    private static final int USERS = 100000;
+
+    private TdClient plain;
+
+    private TdClient cached;
+
+    private final ConcurrentLongObjectMap<Object> longMap = new ConcurrentLongObjectMap<>(16);
+
+    private final ConcurrentHashMap<Long, Object> map = new ConcurrentHashMap<>();
+
+    @Setup
+    public void setup() throws InterruptedException {
+
+        TdFakeNative fake = Benches.fake();
+
+        plain = Benches.start(new TdClient(TdClient.Companion.initDataDir("data/plain")));
+
+        cached = Benches.start(new TdClient(TdClient.Companion.initDataDir("data/cached").entityCache(true)));
+
+        Benches.users(fake, 1000);
+
+        while (CachesKt.cachedUser(cached, 1000) == null) Thread.sleep(10L);
+
+        for (long id = 0; id < USERS; id++) {
+
+            longMap.set(id, id);
+
+            map.put(id, id);
+
+        }
+
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        Benches.stop(plain);
+
+        Benches.stop(cached);
+
+    }
+
+    private static int nextUser() {
+
+        return ThreadLocalRandom.current().nextInt(1000) + 1;
+
+    }
+
+    @Benchmark
+    public TdApi.Object getUser() {
+
+        return Benches.sync(plain, new TdApi.GetUser(nextUser()));
+
+    }
+
+    @Benchmark
+    public TdApi.Object getUserCached() {
+
+        return Benches.sync(cached, new TdApi.GetUser(nextUser()));
+
+    }
+
+    @Benchmark
+    public TdApi.User cachedUser() {
+
+        return CachesKt.cachedUser(cached, nextUser());
+
+    }
+
+    @Benchmark
+    public Object longObjectMap() {
+
+        return longMap.get(ThreadLocalRandom.current().nextInt(USERS));
+
+    }
+
+    @Benchmark
+    public Object concurrentHashMap() {
+
+        return map.get((long) ThreadLocalRandom.current().nextInt(USERS));
+
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.bench
+
+import nekox.core.client.TdClient
+import nekox.core.client.TdClient.Companion.ReceiveMode
+import com.sun.management.OperatingSystemMXBean
+import java.lang.management.ManagementFactory
+import kotlin.system.exitProcess
+
+/**
+ * 空闲时每个客户端占用的 CPU, 以及单条更新从投递到处理器的延迟.
+ *
+ * java -cp target/benchmarks.jar nekox.bench.IdleLoad [客户端数量] [秒数]
+ */
+object IdleLoad {
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+
+        val count = args.getOrNull(0)?.toInt() ?: 8
+
+        val seconds = args.getOrNull(1)?.toLong() ?: 10L
+
+        val fake = Benches.fake()
+
+        val counters = Array(count) { CountingHandler() }
+
+        val clients = Array(count) {
+
+            TdClient(TdClient.initDataDir("data/idle$it")).apply { addHandler(counters[it]) }
+
+        }
+
+        clients.forEach { Benches.start(it) }
+
+        val os = ManagementFactory.getOperatingSystemMXBean() as OperatingSystemMXBean
+
+        for (mode in ReceiveMode.values()) {
+
+            TdClient.receiveMode = mode
+
+            Thread.sleep(1000L)
+
+            val cpuStart = os.processCpuTime
+
+            val start = System.nanoTime()
+
+            Thread.sleep(seconds * 1000L)
+
+            val cpu = (os.processCpuTime - cpuStart) / ((System.nanoTime() - start) / 1000_000_000.0) / 1000_000.0
+
+            println("$mode: $count 个客户端空闲, CPU %.2f ms/s, 每个客户端 %.3f ms/s".format(cpu, cpu / count))
+
+            // 第一个客户端创建的第一个本地客户端.
+
+            val target = fake.clients.getValue(1L)
+
+            val counter = counters[0]
+
+            val latencies = LongArray(1000) {
+
+                val update = fake.newMessage(2L, 2, "ping")
+
+                val sent = System.nanoTime()
+
+                target.push(update)
+
+                counter.await(1)
+
+                System.nanoTime() - sent
+
+            }
+
+            latencies.sort()
+
+            println("$mode: 更新延迟 p50 %.1f us, p99 %.1f us".format(latencies[500] / 1000.0, latencies[990] / 1000.0))
+
+        }
+
+        clients.forEach { Benches.stop(it) }
+
+        // 事件循环线程不会自行退出.
+
+        exitProcess(0)
+
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.bench
+
+import nekox.core.client.TdAbsHandler
+import td.TdApi.*
+
+/**
+ * 改用分发表之前 TdClient.handleUpdate 中逐个 is 判断的写法, 作为 [nekox.core.client.TdUpdates] 的对照.
+ */
+suspend fun legacyDispatch(handler: TdAbsHandler, eventObj: Object) = with(handler) {
+
+    when (eventObj) {
+
+        is UpdateAuthorizationState -> onAuthorizationState(eventObj.authorizationState)
+        is UpdateNewMessage -> onNewMessage(eventObj.message.senderUserId, eventObj.message.chatId, eventObj.message)
+        is UpdateMessageSendAcknowledged -> onMessageSendAcknowledged(eventObj.chatId, eventObj.messageId)
+        is UpdateMessageSendSucceeded -> onMessageSendSucceeded(eventObj.message, eventObj.oldMessageId)
+        is UpdateMessageSendFailed -> onMessageSendFailed(eventObj.message, eventObj.oldMessageId, eventObj.errorCode, eventObj.errorMessage)
+        is UpdateMessageContent -> onMessageContent(eventObj.chatId, eventObj.messageId, eventObj.newContent)
+        is UpdateMessageEdited -> onMessageEdited(eventObj.chatId, eventObj.messageId, eventObj.editDate, eventObj.replyMarkup)
+        is UpdateMessageViews -> onMessageViews(eventObj.chatId, eventObj.messageId, eventObj.views)
+        is UpdateMessageContentOpened -> onMessageContentOpened(eventObj.chatId, eventObj.messageId)
+        is UpdateMessageMentionRead -> onMessageMentionRead(eventObj.chatId, eventObj.messageId, eventObj.unreadMentionCount)
+        is UpdateNewChat -> onNewChat(eventObj.chat)
+        is UpdateChatTitle -> onChatTitle(eventObj.chatId, eventObj.title)
+        is UpdateChatPhoto -> onChatPhoto(eventObj.chatId, eventObj.photo)
+        is UpdateChatPermissions -> onChatPermissions(eventObj.chatId, eventObj.permissions)
+        is UpdateChatLastMessage -> onChatLastMessage(eventObj.chatId, eventObj.lastMessage, eventObj.order)
+        is UpdateChatOrder -> onChatOrder(eventObj.chatId, eventObj.order)
+        is UpdateChatIsPinned -> onChatIsPinned(eventObj.chatId, eventObj.isPinned, eventObj.order)
+        is UpdateChatIsMarkedAsUnread -> onChatIsMarkedAsUnread(eventObj.chatId, eventObj.isMarkedAsUnread)
+        is UpdateChatIsSponsored -> onChatIsSponsored(eventObj.chatId, eventObj.isSponsored, eventObj.order)
+        is UpdateChatDefaultDisableNotification -> onChatDefaultDisableNotification(eventObj.chatId, eventObj.defaultDisableNotification)
+        is UpdateChatReadInbox -> onChatReadInbox(eventObj.chatId, eventObj.lastReadInboxMessageId, eventObj.unreadCount)
+        is UpdateChatReadOutbox -> onChatReadOutbox(eventObj.chatId, eventObj.lastReadOutboxMessageId)
+        is UpdateChatUnreadMentionCount -> onChatUnreadMentionCount(eventObj.chatId, eventObj.unreadMentionCount)
+        is UpdateChatNotificationSettings -> onChatNotificationSettings(eventObj.chatId, eventObj.notificationSettings)
+        is UpdateScopeNotificationSettings -> onScopeNotificationSettings(eventObj.scope, eventObj.notificationSettings)
+        is UpdateChatPinnedMessage -> onChatPinnedMessage(eventObj.chatId, eventObj.pinnedMessageId)
+        is UpdateChatReplyMarkup -> onChatReplyMarkup(eventObj.chatId, eventObj.replyMarkupMessageId)
+        is UpdateChatDraftMessage -> onChatDraftMessage(eventObj.chatId, eventObj.draftMessage, eventObj.order)
+        is UpdateChatOnlineMemberCount -> onChatOnlineMemberCount(eventObj.chatId, eventObj.onlineMemberCount)
+        is UpdateNotification -> onNotification(eventObj.notificationGroupId, eventObj.notification)
+        is UpdateNotificationGroup -> onNotificationGroup(eventObj.notificationGroupId, eventObj.type, eventObj.chatId, eventObj.notificationSettingsChatId, eventObj.isSilent, eventObj.totalCount, eventObj.addedNotifications, eventObj.removedNotificationIds)
+        is UpdateActiveNotifications -> onActiveNotifications(eventObj.groups)
+        is UpdateHavePendingNotifications -> onHavePendingNotifications(eventObj.haveDelayedNotifications, eventObj.haveUnreceivedNotifications)
+        is UpdateDeleteMessages -> onDeleteMessages(eventObj.chatId, eventObj.messageIds, eventObj.isPermanent, eventObj.fromCache)
+        is UpdateUserChatAction -> onUserChatAction(eventObj.chatId, eventObj.userId, eventObj.action)
+        is UpdateUserStatus -> onUserStatus(eventObj.userId, eventObj.status)
+        is UpdateUser -> onUser(eventObj.user)
+        is UpdateBasicGroup -> onBasicGroup(eventObj.basicGroup)
+        is UpdateSupergroup -> onSupergroup(eventObj.supergroup)
+        is UpdateSecretChat -> onSecretChat(eventObj.secretChat)
+        is UpdateUserFullInfo -> onUserFullInfo(eventObj.userId, eventObj.userFullInfo)
+        is UpdateBasicGroupFullInfo -> onBasicGroupFullInfo(eventObj.basicGroupId, eventObj.basicGroupFullInfo)
+        is UpdateSupergroupFullInfo -> onSupergroupFullInfo(eventObj.supergroupId, eventObj.supergroupFullInfo)
+        is UpdateServiceNotification -> onServiceNotification(eventObj.type, eventObj.content)
+        is UpdateFile -> onFile(eventObj.file)
+        is UpdateFileGenerationStart -> onFileGenerationStart(eventObj.generationId, eventObj.originalPath, eventObj.destinationPath, eventObj.conversion)
+        is UpdateFileGenerationStop -> onFileGenerationStop(eventObj.generationId)
+        is UpdateCall -> onCall(eventObj.call)
+        is UpdateUserPrivacySettingRules -> onUserPrivacySettingRules(eventObj.setting, eventObj.rules)
+        is UpdateUnreadMessageCount -> onUnreadMessageCount(eventObj.unreadCount, eventObj.unreadUnmutedCount)
+        is UpdateUnreadChatCount -> onUnreadChatCount(eventObj.unreadCount, eventObj.unreadUnmutedCount, eventObj.markedAsUnreadCount, eventObj.markedAsUnreadUnmutedCount)
+        is UpdateOption -> onOption(eventObj.name, eventObj.value)
+        is UpdateInstalledStickerSets -> onInstalledStickerSets(eventObj.isMasks, eventObj.stickerSetIds)
+        is UpdateTrendingStickerSets -> onTrendingStickerSets(eventObj.stickerSets)
+        is UpdateRecentStickers -> onRecentStickers(eventObj.isAttached, eventObj.stickerIds)
+        is UpdateFavoriteStickers -> onFavoriteStickers(eventObj.stickerIds)
+        is UpdateSavedAnimations -> onSavedAnimations(eventObj.animationIds)
+        is UpdateSelectedBackground -> onSelectedBackground(eventObj.forDarkTheme, eventObj.background)
+        is UpdateLanguagePackStrings -> onLanguagePackStrings(eventObj.localizationTarget, eventObj.languagePackId, eventObj.strings)
+        is UpdateConnectionState -> onConnectionState(eventObj.state)
+        is UpdateTermsOfService -> onTermsOfService(eventObj.termsOfServiceId, eventObj.termsOfService)
+        is UpdateNewInlineQuery -> onNewInlineQuery(eventObj.id, eventObj.senderUserId, eventObj.userLocation, eventObj.query, eventObj.offset)
+        is UpdateNewChosenInlineResult -> onNewChosenInlineResult(eventObj.senderUserId, eventObj.userLocation, eventObj.query, eventObj.resultId, eventObj.inlineMessageId)
+        is UpdateNewCallbackQuery -> handleNewCallbackQuery(eventObj.id, eventObj.senderUserId, eventObj.chatId, eventObj.messageId, eventObj.chatInstance, eventObj.payload)
+        is UpdateNewInlineCallbackQuery -> handleNewInlineCallbackQuery(eventObj.id, eventObj.senderUserId, eventObj.inlineMessageId, eventObj.chatInstance, eventObj.payload)
+        is UpdateNewShippingQuery -> onNewShippingQuery(eventObj.id, eventObj.senderUserId, eventObj.invoicePayload, eventObj.shippingAddress)
+        is UpdateNewPreCheckoutQuery -> onNewPreCheckoutQuery(eventObj.id, eventObj.senderUserId, eventObj.currency, eventObj.totalAmount, eventObj.invoicePayload, eventObj.shippingOptionId, eventObj.orderInfo)
+        is UpdateNewCustomEvent -> onNewCustomEvent(eventObj.event)
+        is UpdateNewCustomQuery -> onNewCustomQuery(eventObj.id, eventObj.data, eventObj.timeout)
+        is UpdatePoll -> onPoll(eventObj.poll)
+
+        else -> Unit
+
+    }
+
+}
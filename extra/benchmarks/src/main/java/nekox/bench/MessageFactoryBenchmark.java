@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.bench;
+
+import nekox.core.client.TdClient;
+import org.openjdk.jmh.annotations.*;
+import td.TdApi;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageFactory 构建 SendMessage, HTML 解析经由替身的 ParseTextEntities.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageFactoryBenchmark {
+
+    private TdClient client;
+
+    @Setup
+    public void setup() {
+
+        Benches.fake();
+
+        client = Benches.start(new TdClient(TdClient.Companion.initDataDir("data/factory")));
+
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        Benches.stop(client);
+
+    }
+
+    @Benchmark
+    public TdApi.SendMessage plain() {
+
+        return Messages.plain(client, 2L);
+
+    }
+
+    @Benchmark
+    public TdApi.SendMessage html() {
+
+        return Messages.html(client, 2L);
+
+    }
+
+    @Benchmark
+    public TdApi.SendMessage keyboard() {
+
+        return Messages.keyboard(client, 2L);
+
+    }
+
+}
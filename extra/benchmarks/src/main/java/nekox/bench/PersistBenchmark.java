@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.bench;
+
+import nekox.core.client.TdClient;
+import nekox.core.client.TdOptions;
+import nekox.core.utils.CsvStorage;
+import nekox.core.utils.PersistFactoryKt;
+import nekox.core.utils.WalStorage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PersistFactory 的持久化: 每次修改一个键后写入整张表, 以及读取整张表.
+ *
+ * csv 每次重写整个文件, wal 只追加有变化的键 (落盘由后台每秒一次的 fsync 完成, 不计入).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistBenchmark {
+
+    @Param({"100", "10000"})
+    public int entries;
+
+    @Param({"csv", "wal"})
+    public String storage;
+
+    private TdClient client;
+
+    private Map<String, List<String>> data;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+
+        Benches.fake();
+
+        TdOptions options = TdClient.Companion.initDataDir("data/persist");
+
+        if (storage.equals("csv")) options.storage(CsvStorage::new);
+        else options.storage(dir -> new WalStorage(dir, 1000L, 1L << 20));
+
+        client = Benches.start(new TdClient(options));
+
+        data = new HashMap<>();
+
+        for (int index = 0; index < entries; index++) {
+
+            data.put(String.valueOf(index), List.of(String.valueOf(index * 31), "1", "0", "a \"quoted\", value"));
+
+        }
+
+        PersistFactoryKt.writeDataMapTo(client, "bench", data);
+
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        Benches.stop(client);
+
+    }
+
+    @Benchmark
+    public void write() {
+
+        data.put(String.valueOf(next++ % entries), List.of(String.valueOf(next), "1", "0", "changed"));
+
+        PersistFactoryKt.writeDataMapTo(client, "bench", data);
+
+    }
+
+    @Benchmark
+    public Map<String, List<String>> read() {
+
+        return PersistFactoryKt.readDataMapFrom(client, "bench");
+
+    }
+
+}
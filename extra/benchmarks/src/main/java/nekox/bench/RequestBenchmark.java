@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.bench;
+
+import nekox.core.client.TdClient;
+import org.openjdk.jmh.annotations.*;
+import td.TdApi;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TdClient.send / sync / sendAsync 的请求往返, latency 为替身的应答延迟 (毫秒).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBenchmark {
+
+    @Param({"0", "1"})
+    public long latency;
+
+    private TdClient client;
+
+    @Setup
+    public void setup() {
+
+        TdFakeNative fake = Benches.fake();
+
+        fake.setLatency(latency);
+
+        client = Benches.start(new TdClient(TdClient.Companion.initDataDir("data/request")));
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        Benches.stop(client);
+
+    }
+
+    @Benchmark
+    public TdApi.Object sync() {
+
+        return Benches.sync(client, new TdApi.GetMe());
+
+    }
+
+    @Benchmark
+    public TdApi.Object send() {
+
+        return Benches.send(client, new TdApi.GetMe());
+
+    }
+
+    @Benchmark
+    public TdApi.Object sendAsync() {
+
+        return Benches.sendAsync(client, new TdApi.GetMe());
+
+    }
+
+    /**
+     * SendMessage 要等到 UpdateMessageSendSucceeded 才完成.
+     */
+    @Benchmark
+    public TdApi.Object sendMessage() {
+
+        return Benches.sync(client, Messages.plain(client, 2L));
+
+    }
+
+}
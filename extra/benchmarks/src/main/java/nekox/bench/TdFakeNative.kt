@@ -0,0 +1,223 @@
+package nekox.bench
+
+import td.TdApi
+import td.TdApi.*
+import td.TdNativeClient
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 进程内的 TDLib 替身, 用于压测与基准测试, 不随 lib 发布.
+ *
+ * 按 [respond] 注册的函数应答请求, 可设置固定的应答延迟 [latency],
+ * 并可通过 [push] / [replay] 向客户端投递任意更新流. 默认脚本会完成登录流程,
+ * 应答 GetMe, SendMessage (随后推送 UpdateMessageSendSucceeded) 与 Close.
+ *
+ * 使用前设置 `TdNative.client = TdFakeNative()`.
+ */
+class TdFakeNative : TdNativeClient {
+
+    class Event(val requestId: Long, val event: Object)
+
+    inner class FakeClient(val id: Long) {
+
+        internal val queue = LinkedBlockingQueue<Event>()
+
+        @Volatile
+        var closed = false
+            internal set
+
+        fun push(update: Object) {
+
+            queue.add(Event(0L, update))
+
+        }
+
+        fun replay(updates: Iterable<Object>) = updates.forEach { push(it) }
+
+        internal fun reply(requestId: Long, result: Object) {
+
+            queue.add(Event(requestId, result))
+
+        }
+
+    }
+
+    private val ids = AtomicLong(1)
+
+    private val messageIds = AtomicLong(1)
+
+    val clients = ConcurrentHashMap<Long, FakeClient>()
+
+    /**
+     * 应答请求前等待的毫秒数.
+     */
+    var latency = 0L
+
+    /**
+     * 为 false 时停在 AuthorizationStateWaitPhoneNumber, 等待 CheckAuthenticationBotToken.
+     */
+    var authorized = true
+
+    var me = User(1, "NekoX", "", "nekox_bot", "", UserStatusEmpty(), null, false, false, false, false, "", false, true, UserTypeBot(true, true, false, "", false), "en")
+
+    private val responders = ConcurrentHashMap<Class<*>, FakeClient.(TdApi.Function) -> Object?>()
+
+    private val timer = Executors.newSingleThreadScheduledExecutor {
+
+        Thread(it, "TdFakeNative Timer").apply { isDaemon = true }
+
+    }
+
+    /**
+     * 注册 [clazz] 请求的应答. 返回 null 表示不应答.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <F : TdApi.Function> respond(clazz: Class<F>, responder: FakeClient.(F) -> Object?) {
+
+        responders[clazz] = responder as FakeClient.(TdApi.Function) -> Object?
+
+    }
+
+    inline fun <reified F : TdApi.Function> respond(noinline responder: FakeClient.(F) -> Object?) = respond(F::class.java, responder)
+
+    fun push(update: Object) = clients.values.forEach { it.push(update) }
+
+    fun replay(updates: Iterable<Object>) = clients.values.forEach { it.replay(updates) }
+
+    fun textMessage(chatId: Long, senderUserId: Int, text: String, id: Long = messageIds.getAndIncrement()): Message {
+
+        val now = (System.currentTimeMillis() / 1000).toInt()
+
+        return Message(id, senderUserId, chatId, null, null, false, false, true, false, true, false, false, now, 0, null, 0L, 0, 0.0, 0, "", 0, 0L, "", MessageText(FormattedText(text, arrayOf()), null), null)
+
+    }
+
+    fun newMessage(chatId: Long, senderUserId: Int, text: String) = UpdateNewMessage(textMessage(chatId, senderUserId, text))
+
+    init {
+
+        respond<SetTdlibParameters> {
+
+            push(UpdateAuthorizationState(AuthorizationStateWaitEncryptionKey(false)))
+
+            Ok()
+
+        }
+
+        respond<CheckDatabaseEncryptionKey> {
+
+            push(UpdateAuthorizationState(if (authorized) AuthorizationStateReady() else AuthorizationStateWaitPhoneNumber()))
+
+            Ok()
+
+        }
+
+        respond<CheckAuthenticationBotToken> {
+
+            push(UpdateAuthorizationState(AuthorizationStateReady()))
+
+            Ok()
+
+        }
+
+        respond<GetMe> { me }
+
+        respond<TestCallEmpty> { Ok() }
+
+        respond<SendMessage> { function ->
+
+            val sending = textMessage(function.chatId, me.id, (function.inputMessageContent as? InputMessageText)?.text?.text ?: "")
+
+            val sent = textMessage(function.chatId, me.id, sending.content.let { (it as MessageText).text.text })
+
+            timer.schedule({ push(UpdateMessageSendSucceeded(sent, sending.id)) }, latency + 1, TimeUnit.MILLISECONDS)
+
+            sending
+
+        }
+
+        respond<ParseTextEntities> { FormattedText(it.text, arrayOf()) }
+
+        respond<Close> {
+
+            push(UpdateAuthorizationState(AuthorizationStateClosing()))
+
+            push(UpdateAuthorizationState(AuthorizationStateClosed()))
+
+            closed = true
+
+            Ok()
+
+        }
+
+    }
+
+    private fun answer(client: FakeClient?, function: TdApi.Function): Object? {
+
+        val responder = responders[function.javaClass] ?: return Error(400, "TdFakeNative: ${function.javaClass.simpleName} 未定义应答")
+
+        return (client ?: FakeClient(0L)).responder(function)
+
+    }
+
+    override fun createNativeClient(): Long {
+
+        val client = FakeClient(ids.getAndIncrement())
+
+        clients[client.id] = client
+
+        client.push(UpdateAuthorizationState(AuthorizationStateWaitTdlibParameters()))
+
+        return client.id
+
+    }
+
+    override fun nativeClientSend(nativeClientId: Long, eventId: Long, function: TdApi.Function) {
+
+        val client = clients[nativeClientId] ?: error("客户端 #$nativeClientId 不存在")
+
+        if (latency <= 0L) {
+
+            answer(client, function)?.let { client.reply(eventId, it) }
+
+        } else {
+
+            timer.schedule({ answer(client, function)?.let { client.reply(eventId, it) } }, latency, TimeUnit.MILLISECONDS)
+
+        }
+
+    }
+
+    override fun nativeClientReceive(nativeClientId: Long, eventIds: LongArray, events: Array<Object?>, timeout: Double): Int {
+
+        val queue = (clients[nativeClientId] ?: return 0).queue
+
+        var event = queue.poll() ?: if (timeout > 0.0) queue.poll((timeout * 1000_000_000L).toLong(), TimeUnit.NANOSECONDS) else null
+
+        var count = 0
+
+        while (event != null) {
+
+            eventIds[count] = event.requestId
+            events[count] = event.event
+
+            if (++count == eventIds.size) break
+
+            event = queue.poll()
+
+        }
+
+        return count
+
+    }
+
+    override fun nativeClientExecute(function: TdApi.Function) = answer(null, function) ?: Error(400, "TdFakeNative: ${function.javaClass.simpleName} 无应答")
+
+    override fun destroyNativeClient(nativeClientId: Long) {
+
+        clients.remove(nativeClientId)
+
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.bench;
+
+import nekox.core.client.TdClient;
+import nekox.core.client.TdClient.Companion.ReceiveMode;
+import nekox.core.client.TdOptions;
+import org.openjdk.jmh.annotations.*;
+import td.TdApi;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 更新从本地客户端经 TdClient.loopEvents 分发到处理器.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateDispatchBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"BLOCKING", "SPIN"})
+    public String receiveMode;
+
+    @Param({"0", "4"})
+    public int parallelism;
+
+    private TdClient client;
+
+    private CountingHandler counter;
+
+    private TdFakeNative.FakeClient target;
+
+    private TdApi.Object[] updates;
+
+    @Setup
+    public void setup() {
+
+        TdFakeNative fake = Benches.fake();
+
+        TdClient.Companion.setReceiveMode(ReceiveMode.valueOf(receiveMode));
+
+        TdOptions options = TdClient.Companion.initDataDir("data/dispatch");
+
+        if (parallelism > 0) options.orderedDispatch(parallelism);
+
+        client = new TdClient(options);
+
+        counter = new CountingHandler();
+
+        client.addHandler(counter);
+
+        Benches.start(client);
+
+        target = fake.getClients().values().iterator().next();
+
+        updates = new TdApi.Object[BATCH];
+
+        for (int index = 0; index < BATCH; index++) {
+
+            updates[index] = fake.newMessage(index % 16 + 2, 2, "hello");
+
+        }
+
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        Benches.stop(client);
+
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void newMessages() {
+
+        for (TdApi.Object update : updates) target.push(update);
+
+        counter.await(BATCH);
+
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency() {
+
+        target.push(updates[0]);
+
+        counter.await(1);
+
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.bench;
+
+import nekox.core.client.TdHandler;
+import org.openjdk.jmh.annotations.*;
+import td.TdApi;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TdUpdates 分发表与旧的 is 判断链的对比, 不经过接收线程.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateTableBenchmark {
+
+    private static final int BATCH = 700;
+
+    private final TdHandler handler = new TdHandler();
+
+    private TdApi.Object[] updates;
+
+    @Setup
+    public void setup() {
+
+        TdApi.Object[] mix = Benches.updateMix(Benches.fake());
+
+        updates = new TdApi.Object[BATCH];
+
+        for (int index = 0; index < BATCH; index++) updates[index] = mix[index % mix.length];
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void table() {
+
+        Benches.dispatchTable(handler, updates);
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void legacy() {
+
+        Benches.dispatchLegacy(handler, updates);
+
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core
+
+import td.TdApi
+import td.TdApi.*
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * 由更新维护的用户, 会话, 超级群组, 普通群组与文件.
+ *
+ * TDLib 在返回这些对象之前总会先推送对应的 UpdateUser, UpdateNewChat 等更新, 所以接收线程按更新维护即可.
+ * 缓存中的对象不会再被修改: UpdateChatXxx 与 UpdateUserStatus 复制一份改过的对象替换原有的,
+ * 已经取得的 Chat / User 仍是更新之前的状态.
+ */
+class EntityStore {
+
+    val users = ConcurrentLongObjectMap<User>()
+
+    val chats = ConcurrentLongObjectMap<Chat>()
+
+    val supergroups = ConcurrentLongObjectMap<Supergroup>()
+
+    val basicGroups = ConcurrentLongObjectMap<BasicGroup>()
+
+    val files = ConcurrentLongObjectMap<File>()
+
+    private val hitCounter = LongAdder()
+    private val missCounter = LongAdder()
+
+    val hits get() = hitCounter.sum()
+
+    val misses get() = missCounter.sum()
+
+    fun user(userId: Int) = users[userId.toLong()]
+
+    fun chat(chatId: Long) = chats[chatId]
+
+    fun supergroup(supergroupId: Int) = supergroups[supergroupId.toLong()]
+
+    fun basicGroup(basicGroupId: Int) = basicGroups[basicGroupId.toLong()]
+
+    fun file(fileId: Int) = files[fileId.toLong()]
+
+    /**
+     * 可以直接由缓存应答的请求的结果, 其他请求返回 null.
+     */
+    fun lookup(function: TdApi.Function): Object? {
+
+        val result = when (function) {
+
+            is GetUser -> user(function.userId)
+            is GetChat -> chat(function.chatId)
+            is GetSupergroup -> supergroup(function.supergroupId)
+            is GetBasicGroup -> basicGroup(function.basicGroupId)
+            is GetFile -> file(function.fileId)
+
+            else -> return null
+
+        }
+
+        if (result != null) hitCounter.increment() else missCounter.increment()
+
+        return result
+
+    }
+
+    fun onUpdate(update: Object) {
+
+        when (update) {
+
+            is UpdateUser -> users[update.user.id.toLong()] = update.user
+            is UpdateNewChat -> chats[update.chat.id] = update.chat
+            is UpdateSupergroup -> supergroups[update.supergroup.id.toLong()] = update.supergroup
+            is UpdateBasicGroup -> basicGroups[update.basicGroup.id.toLong()] = update.basicGroup
+            is UpdateFile -> files[update.file.id.toLong()] = update.file
+
+            is UpdateUserStatus -> users[update.userId.toLong()]?.let { users[it.id.toLong()] = it.copy().apply { status = update.status } }
+
+            is UpdateChatTitle -> chat(update.chatId) { title = update.title }
+            is UpdateChatPhoto -> chat(update.chatId) { photo = update.photo }
+            is UpdateChatPermissions -> chat(update.chatId) { permissions = update.permissions }
+            is UpdateChatChatList -> chat(update.chatId) { chatList = update.chatList }
+            is UpdateChatLastMessage -> chat(update.chatId) { lastMessage = update.lastMessage; order = update.order }
+            is UpdateChatOrder -> chat(update.chatId) { order = update.order }
+            is UpdateChatIsPinned -> chat(update.chatId) { isPinned = update.isPinned; order = update.order }
+            is UpdateChatIsMarkedAsUnread -> chat(update.chatId) { isMarkedAsUnread = update.isMarkedAsUnread }
+            is UpdateChatIsSponsored -> chat(update.chatId) { isSponsored = update.isSponsored; order = update.order }
+            is UpdateChatHasScheduledMessages -> chat(update.chatId) { hasScheduledMessages = update.hasScheduledMessages }
+            is UpdateChatDefaultDisableNotification -> chat(update.chatId) { defaultDisableNotification = update.defaultDisableNotification }
+            is UpdateChatReadInbox -> chat(update.chatId) { lastReadInboxMessageId = update.lastReadInboxMessageId; unreadCount = update.unreadCount }
+            is UpdateChatReadOutbox -> chat(update.chatId) { lastReadOutboxMessageId = update.lastReadOutboxMessageId }
+            is UpdateChatUnreadMentionCount -> chat(update.chatId) { unreadMentionCount = update.unreadMentionCount }
+            is UpdateChatNotificationSettings -> chat(update.chatId) { notificationSettings = update.notificationSettings }
+            is UpdateChatActionBar -> chat(update.chatId) { actionBar = update.actionBar }
+            is UpdateChatPinnedMessage -> chat(update.chatId) { pinnedMessageId = update.pinnedMessageId }
+            is UpdateChatReplyMarkup -> chat(update.chatId) { replyMarkupMessageId = update.replyMarkupMessageId }
+            is UpdateChatDraftMessage -> chat(update.chatId) { draftMessage = update.draftMessage; order = update.order }
+
+        }
+
+    }
+
+    /**
+     * 只由接收线程调用, 读取与替换之间不会有其他写入.
+     */
+    private inline fun chat(chatId: Long, block: Chat.() -> Unit) {
+
+        val chat = chats[chatId] ?: return
+
+        chats[chatId] = chat.copy().apply(block)
+
+    }
+
+    private fun Chat.copy() = Chat(id, type, chatList, title, photo, permissions, lastMessage, order, isPinned, isMarkedAsUnread, isSponsored, hasScheduledMessages, canBeDeletedOnlyForSelf, canBeDeletedForAllUsers, canBeReported, defaultDisableNotification, unreadCount, lastReadInboxMessageId, lastReadOutboxMessageId, unreadMentionCount, notificationSettings, actionBar, pinnedMessageId, replyMarkupMessageId, draftMessage, clientData)
+
+    private fun User.copy() = User(id, firstName, lastName, username, phoneNumber, status, profilePhoto, isContact, isMutualContact, isVerified, isSupport, restrictionReason, isScam, haveAccess, type, languageCode)
+
+}
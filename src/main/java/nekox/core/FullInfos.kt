@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core
+
+import td.TdApi
+import td.TdApi.*
+import java.util.*
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * 用户, 超级群组与普通群组完整信息的缓存.
+ *
+ * 最多保留 [maxSize] 项, 超出时淘汰最久未访问的, 每项在 [ttl] 毫秒后过期.
+ * UpdateXxxFullInfo 到达时直接替换为更新中的新值.
+ *
+ * 同一对象同时只有一个请求发往 TDLib, 之后到达的相同请求等待它的响应 (single-flight).
+ */
+class FullInfoStore(val maxSize: Int, val ttl: Long) {
+
+    init {
+
+        check(maxSize > 0) { "maxSize 必须大于 0" }
+        check(ttl > 0) { "ttl 必须大于 0" }
+
+    }
+
+    private class Cached(val value: Object, val expiresAt: Long)
+
+    private class Flight(val key: Long) {
+
+        val startedAt = System.nanoTime()
+
+        val followers = LinkedList<Long>()
+
+    }
+
+    private val entries = object : LinkedHashMap<Long, Cached>(16, 0.75f, true) {
+
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, Cached>) = size > maxSize
+
+    }
+
+    private val loading = HashMap<Long, Flight>()
+
+    private val leaders = HashMap<Long, Flight>()
+
+    private val hitCounter = LongAdder()
+    private val missCounter = LongAdder()
+    private val coalescedCounter = LongAdder()
+
+    val hits get() = hitCounter.sum()
+
+    val misses get() = missCounter.sum()
+
+    /**
+     * 等待其他相同请求而未发出的请求数.
+     */
+    val coalesced get() = coalescedCounter.sum()
+
+    val size get() = synchronized(this) { entries.size }
+
+    /**
+     * 未过期的缓存结果, [function] 不是完整信息请求或未缓存时返回 null.
+     */
+    @Synchronized
+    fun cached(function: TdApi.Function): Object? {
+
+        val key = keyOf(function) ?: return null
+
+        val entry = entries[key] ?: return null
+
+        if (entry.expiresAt - System.nanoTime() <= 0L) {
+
+            entries.remove(key)
+
+            return null
+
+        }
+
+        hitCounter.increment()
+
+        return entry.value
+
+    }
+
+    /**
+     * 已有相同请求在途时登记为等待并返回 true, 否则 [requestId] 成为该对象的在途请求并返回 false.
+     */
+    @Synchronized
+    internal fun join(function: TdApi.Function, requestId: Long): Boolean {
+
+        val key = keyOf(function) ?: return false
+
+        val flight = loading[key]
+
+        if (flight != null && System.nanoTime() - flight.startedAt < FLIGHT_TIMEOUT) {
+
+            flight.followers.add(requestId)
+
+            coalescedCounter.increment()
+
+            return true
+
+        }
+
+        missCounter.increment()
+
+        Flight(key).also {
+
+            // 在途请求迟迟没有响应时由这个请求接替, 之前等待的请求改为等待它.
+
+            if (flight != null) it.followers.addAll(flight.followers)
+
+            loading[key] = it
+
+            leaders[requestId] = it
+
+        }
+
+        return false
+
+    }
+
+    /**
+     * 在途请求收到响应时调用, 缓存结果并返回等待它的请求.
+     */
+    @Synchronized
+    internal fun onResponse(requestId: Long, result: Object): List<Long>? {
+
+        val flight = leaders.remove(requestId) ?: return null
+
+        if (loading[flight.key] !== flight) return null
+
+        loading.remove(flight.key)
+
+        if (result !is Error) put(flight.key, result)
+
+        return flight.followers
+
+    }
+
+    @Synchronized
+    fun onUpdate(update: Object) {
+
+        when (update) {
+
+            is UpdateUserFullInfo -> put(key(USER, update.userId), update.userFullInfo)
+            is UpdateSupergroupFullInfo -> put(key(SUPERGROUP, update.supergroupId), update.supergroupFullInfo)
+            is UpdateBasicGroupFullInfo -> put(key(BASIC_GROUP, update.basicGroupId), update.basicGroupFullInfo)
+
+        }
+
+    }
+
+    @Synchronized
+    fun clear() = entries.clear()
+
+    private fun put(key: Long, value: Object) {
+
+        entries[key] = Cached(value, System.nanoTime() + ttl * 1000_000L)
+
+    }
+
+    companion object {
+
+        private const val USER = 1L
+        private const val SUPERGROUP = 2L
+        private const val BASIC_GROUP = 3L
+
+        private const val FLIGHT_TIMEOUT = 60 * 1000_000_000L
+
+        private fun key(kind: Long, id: Int) = (kind shl 32) or (id.toLong() and 0xFFFFFFFFL)
+
+        private fun keyOf(function: TdApi.Function) = when (function) {
+
+            is GetUserFullInfo -> key(USER, function.userId)
+            is GetSupergroupFullInfo -> key(SUPERGROUP, function.supergroupId)
+            is GetBasicGroupFullInfo -> key(BASIC_GROUP, function.basicGroupId)
+
+            else -> null
+
+        }
+
+    }
+
+}
@@ -1,6 +1,8 @@
 package nekox.core
 
-import kotlinx.coroutines.delay
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.withTimeout
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicReference
 
@@ -8,36 +10,44 @@ fun <T> mkLock() = Lock<T>()
 
 class Lock<T> {
 
+    private val response = CompletableDeferred<T>()
+
+    /**
+     * 旧版的结果字段, 由 [send] 同步写入. 直接写入不会唤醒 [waitFor], 应改用 [send].
+     */
+    @Deprecated("使用 send 与 waitFor")
     val responseAtomicReference = AtomicReference<T>()
 
+    @Deprecated("使用 executed", ReplaceWith("executed"))
     val executedAtomicBoolean = AtomicBoolean(false)
 
-    suspend fun waitFor(timeout: Long = 10 * 1000L): T {
-
-        val start = System.currentTimeMillis()
-
-        while (true) {
+    val executed get() = response.isCompleted
 
-            if (executedAtomicBoolean.get()) {
+    suspend fun waitFor(timeout: Long = 10 * 1000L): T {
 
-                return responseAtomicReference.get() ?: error("null return value")
+        val result = try {
 
-            }
+            withTimeout(timeout) { response.await() }
 
-            if (System.currentTimeMillis() - start > timeout) error("timeout")
+        } catch (e: TimeoutCancellationException) {
 
-            delay(100)
+            error("timeout")
 
         }
 
+        return result ?: error("null return value")
+
     }
 
+    @Suppress("DEPRECATION")
     fun send(result: T) {
 
         responseAtomicReference.set(result)
 
         executedAtomicBoolean.set(true)
 
+        response.complete(result)
+
     }
 
-}
\ No newline at end of file
+}
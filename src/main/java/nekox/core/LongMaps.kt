@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core
+
+/**
+ * 以 long 为键的开放寻址哈希表 (线性探测), 键不装箱, 不允许 null 值. 非线程安全.
+ */
+class LongObjectMap<V : Any>(expectedSize: Int = 16) {
+
+    private var keys: LongArray
+
+    private var values: Array<Any?>
+
+    private var mask: Int
+
+    var size = 0
+        private set
+
+    init {
+
+        val capacity = capacityFor(expectedSize)
+
+        keys = LongArray(capacity)
+        values = arrayOfNulls(capacity)
+        mask = capacity - 1
+
+    }
+
+    fun isEmpty() = size == 0
+
+    private fun indexOf(key: Long): Int {
+
+        var index = mix(key) and mask
+
+        while (true) {
+
+            if (values[index] == null || keys[index] == key) return index
+
+            index = (index + 1) and mask
+
+        }
+
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    operator fun get(key: Long): V? = values[indexOf(key)] as V?
+
+    fun containsKey(key: Long) = values[indexOf(key)] != null
+
+    /**
+     * 返回被替换的值.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun put(key: Long, value: V): V? {
+
+        val index = indexOf(key)
+
+        val old = values[index]
+
+        keys[index] = key
+        values[index] = value
+
+        if (old == null && ++size > (mask + 1) / 2) resize()
+
+        return old as V?
+
+    }
+
+    operator fun set(key: Long, value: V) {
+
+        put(key, value)
+
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun remove(key: Long): V? {
+
+        var gap = indexOf(key)
+
+        val old = values[gap] ?: return null
+
+        // 向后移动同一探测链上的元素填补空位, 不使用墓碑.
+
+        var index = gap
+
+        while (true) {
+
+            index = (index + 1) and mask
+
+            val value = values[index] ?: break
+
+            val ideal = mix(keys[index]) and mask
+
+            val movable = if (index > gap) ideal <= gap || ideal > index else ideal <= gap && ideal > index
+
+            if (movable) {
+
+                keys[gap] = keys[index]
+                values[gap] = value
+
+                gap = index
+
+            }
+
+        }
+
+        values[gap] = null
+
+        size--
+
+        return old as V?
+
+    }
+
+    fun clear() {
+
+        values.fill(null)
+
+        size = 0
+
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    inline fun forEach(action: (Long, V) -> Unit) {
+
+        val keys = keysArray
+        val values = valuesArray
+
+        for (index in values.indices) {
+
+            val value = values[index] ?: continue
+
+            action(keys[index], value as V)
+
+        }
+
+    }
+
+    @PublishedApi
+    internal val keysArray get() = keys
+
+    @PublishedApi
+    internal val valuesArray get() = values
+
+    private fun resize() {
+
+        val oldKeys = keys
+        val oldValues = values
+
+        keys = LongArray(oldKeys.size * 2)
+        values = arrayOfNulls(oldValues.size * 2)
+        mask = keys.size - 1
+
+        for (index in oldValues.indices) {
+
+            val value = oldValues[index] ?: continue
+
+            val newIndex = indexOf(oldKeys[index])
+
+            keys[newIndex] = oldKeys[index]
+            values[newIndex] = value
+
+        }
+
+    }
+
+    companion object {
+
+        private fun capacityFor(expectedSize: Int): Int {
+
+            var capacity = 8
+
+            while (capacity < expectedSize * 2) capacity = capacity shl 1
+
+            return capacity
+
+        }
+
+        internal fun mix(key: Long): Int {
+
+            val hash = key * -7046029254386353131L
+
+            return (hash xor (hash ushr 32)).toInt()
+
+        }
+
+    }
+
+}
+
+/**
+ * 分段加锁的 [LongObjectMap], 按键的哈希分到 [stripes] 个分段, 不同分段的读写互不阻塞.
+ */
+class ConcurrentLongObjectMap<V : Any>(stripes: Int = 16) {
+
+    init {
+
+        check(stripes > 0 && stripes and (stripes - 1) == 0) { "stripes 必须是 2 的幂" }
+
+    }
+
+    private val maps = Array(stripes) { LongObjectMap<V>() }
+
+    private val shift = 32 - Integer.numberOfTrailingZeros(stripes)
+
+    // 分段取哈希的高位, 分段内的表取低位, 两者互不相关.
+
+    private fun stripe(key: Long) = if (maps.size == 1) maps[0] else maps[LongObjectMap.mix(key) ushr shift]
+
+    val size get() = maps.sumBy { synchronized(it) { it.size } }
+
+    fun isEmpty() = size == 0
+
+    operator fun get(key: Long): V? = stripe(key).let { synchronized(it) { it[key] } }
+
+    fun containsKey(key: Long) = stripe(key).let { synchronized(it) { it.containsKey(key) } }
+
+    fun put(key: Long, value: V): V? = stripe(key).let { synchronized(it) { it.put(key, value) } }
+
+    operator fun set(key: Long, value: V) {
+
+        put(key, value)
+
+    }
+
+    fun remove(key: Long): V? = stripe(key).let { synchronized(it) { it.remove(key) } }
+
+    fun clear() = maps.forEach { synchronized(it) { it.clear() } }
+
+    /**
+     * 逐段遍历, 遍历某一段时持有该段的锁.
+     */
+    fun forEach(action: (Long, V) -> Unit) = maps.forEach { synchronized(it) { it.forEach(action) } }
+
+}
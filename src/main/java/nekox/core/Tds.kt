@@ -43,7 +43,7 @@ val Message.text
 
 fun <T : Object> syncRaw(function: TdApi.Function): T {
 
-    val result = TdNative.nativeClientExecute(function)
+    val result = TdNative.client.nativeClientExecute(function)
 
     if (result is Error) {
 
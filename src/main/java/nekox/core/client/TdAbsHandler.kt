@@ -17,6 +17,10 @@
 package nekox.core.client
 
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
 import nekox.TdEnv
 import td.TdApi
 import td.TdApi.*
@@ -25,6 +29,7 @@ import nekox.core.text
 import nekox.core.utils.*
 import java.util.*
 import kotlin.collections.HashMap
+import kotlin.coroutines.coroutineContext
 import java.io.File as JFile
 
 interface TdAbsHandler {
@@ -37,6 +42,11 @@ interface TdAbsHandler {
 
     val dataName: String? get() = null
 
+    /**
+     * 需要接收的更新类型 (TdApi.Update 的 CONSTRUCTOR), 为 null 时按实际重写了的回调自动判断.
+     */
+    val handledUpdates: IntArray? get() = null
+
     fun onDataRestore(data: Map<String, List<String>>) {}
 
     fun onDataSave(data: HashMap<String, List<String>>) {}
@@ -45,7 +55,7 @@ interface TdAbsHandler {
 
         if (dataName == null) return
 
-        onDataRestore(readDataMapFrom(dataName!!) ?: return)
+        onDataRestore(readDataMapFrom(dataName!!))
 
     }
 
@@ -59,7 +69,7 @@ interface TdAbsHandler {
 
         onDataSave(data)
 
-        writeDataMapTo(dataName!!, data.takeIf { it.isNotEmpty() } ?: return)
+        writeDataMapTo(dataName!!, data)
 
     }
 
@@ -211,6 +221,40 @@ interface TdAbsHandler {
 
     suspend infix fun <T : Object> sync(function: TdApi.Function): T = sudo.sync(function)
 
+    suspend fun <T : Object> sync(function: TdApi.Function, timeout: Long): T = sudo.sync(function, timeout)
+
+    /**
+     * 以当前协程为父任务发送请求, 见 [TdClient.sendAsync].
+     */
+    suspend fun <T : Object> sendAsync(function: TdApi.Function): Deferred<T> = sudo.sendAsync(function, coroutineContext[Job], 1)
+
+    /**
+     * 批量发送 [functions], 结果按顺序返回, 见 [TdBatch].
+     */
+    suspend fun <T : Object> syncAll(functions: List<TdApi.Function>, concurrency: Int = TdBatch.DEFAULT_CONCURRENCY): List<T> = TdBatch(sudo, concurrency).execute(functions)
+
+    suspend fun <T : Object> syncAllOrNull(functions: List<TdApi.Function>, concurrency: Int = TdBatch.DEFAULT_CONCURRENCY): List<T?> = TdBatch(sudo, concurrency).executeOrNull(functions)
+
+    /**
+     * 分页请求: 先发送 [first], 之后由 [next] 根据上一页给出下一个请求, 返回 null 时结束.
+     * 只在收集时发送, 收集者取消时停止.
+     */
+    fun <T : Object> paginate(first: TdApi.Function, next: (T) -> TdApi.Function?): Flow<T> = flow {
+
+        var function: TdApi.Function? = first
+
+        while (function != null) {
+
+            val page = sync<T>(function)
+
+            emit(page)
+
+            function = next(page)
+
+        }
+
+    }
+
     suspend infix fun <T : Object> syncOrNull(function: TdApi.Function): T? {
 
         return try {
@@ -303,71 +347,11 @@ interface TdAbsHandler {
 
         if (content !is MessageText) return null
 
-        var param = text!!
-
-        run fn@{
-
-            TdEnv.FUN_PREFIX.forEach {
-
-                if (!param.startsWith(it)) return@forEach
-
-                param = param.substring(it.length)
-
-                return@fn
-
-            }
-
-            return null
-
-        }
-
-        var function = if (!param.contains(' ')) {
-
-            param.also {
-
-                param = ""
-
-            }
-
-        } else {
-
-            param.substringBefore(' ').also {
-
-                param = param.substringAfter(' ')
-
-            }
-
-        }
-
-        val validSuffix = "@${sudo.me.username}"
-
-        if (function.endsWith(validSuffix)) {
-
-            function = function.substring(0, function.length - validSuffix.length)
-
-        }
-
-        val params: List<String>
-
-        val originParams: List<String>
-
-        if (param.isBlank()) {
-
-            originParams = listOf()
-            params = originParams
-
-        } else {
-
-            originParams = param.split(' ')
-            params = param.replace("  ", " ").split(' ')
-
-        }
-
-        return TdFunction(function, param, params, originParams)
+        return sudo.commands.parse(text!!, sudo.me.username)?.function
 
     }
 
-    class Finish : RuntimeException("Finish Event")
+    class Finish : RuntimeException("Finish Event", null, false, false)
 
     fun finishEvent(): Unit = throw Finish()
 
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+/**
+ * 命令参数格式, 如 `<id:long> [reason]`: 尖括号为必填, 方括号为可选, 类型可为 text (默认), int 或 long.
+ * 最后一个参数名后加 `...` 时接收剩余的全部参数.
+ */
+class TdArgSchema(val usage: String) {
+
+    enum class Type { TEXT, INT, LONG }
+
+    class Arg(val name: String, val type: Type, val optional: Boolean, val rest: Boolean)
+
+    val args = usage.split(' ').filter { it.isNotEmpty() }.map { spec ->
+
+        val optional = spec.startsWith('[') && spec.endsWith(']')
+
+        check(optional || spec.startsWith('<') && spec.endsWith('>')) { "无效的参数格式: $spec" }
+
+        var name = spec.substring(1, spec.length - 1)
+
+        val rest = name.endsWith("...")
+
+        if (rest) name = name.dropLast(3)
+
+        val type = when (name.substringAfter(':', "text")) {
+
+            "text" -> Type.TEXT
+            "int" -> Type.INT
+            "long" -> Type.LONG
+
+            else -> error("无效的参数类型: $spec")
+
+        }
+
+        Arg(name.substringBefore(':'), type, optional, rest)
+
+    }
+
+    init {
+
+        args.forEachIndexed { index, arg ->
+
+            check(!arg.rest || index == args.lastIndex) { "剩余参数 ${arg.name} 必须是最后一个" }
+
+            check(arg.optional || index == 0 || !args[index - 1].optional) { "必填参数 ${arg.name} 不能在可选参数之后" }
+
+        }
+
+    }
+
+    /**
+     * 检查参数 (忽略连续空格产生的空参数), 通过时返回 null, 否则返回错误说明.
+     */
+    fun check(params: Array<String>): String? {
+
+        val values = params.filter { it.isNotEmpty() }
+
+        args.forEachIndexed { index, arg ->
+
+            if (index >= values.size) {
+
+                return if (arg.optional) null else "缺少参数 ${arg.name}"
+
+            }
+
+            val last = if (arg.rest) values.size else index + 1
+
+            for (value in values.subList(index, last)) {
+
+                when (arg.type) {
+
+                    Type.INT -> value.toIntOrNull() ?: return "参数 ${arg.name} 应为整数"
+                    Type.LONG -> value.toLongOrNull() ?: return "参数 ${arg.name} 应为整数"
+                    Type.TEXT -> Unit
+
+                }
+
+            }
+
+            if (arg.rest) return null
+
+        }
+
+        return if (values.size > args.size) "参数过多" else null
+
+    }
+
+}
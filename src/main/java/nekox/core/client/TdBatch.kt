@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.sync.Semaphore
+import td.TdApi
+import td.TdApi.Object
+
+/**
+ * 批量请求.
+ *
+ * 请求不等待前一个响应就依次交给 TDLib, 同时在途的不超过 [concurrency] 个, 结果按请求顺序返回.
+ */
+class TdBatch(private val client: TdClient, val concurrency: Int = DEFAULT_CONCURRENCY) {
+
+    init {
+
+        check(concurrency > 0) { "并发数必须大于 0" }
+
+    }
+
+    /**
+     * 任一请求失败时取消其余请求并抛出它的 [TdException].
+     */
+    suspend fun <T : Object> execute(functions: List<TdApi.Function>): List<T> = collect<T, T>(functions) { it.await() }
+
+    /**
+     * 失败的请求对应 null.
+     */
+    suspend fun <T : Object> executeOrNull(functions: List<TdApi.Function>): List<T?> = collect<T, T?>(functions) {
+
+        try {
+
+            it.await()
+
+        } catch (e: TdException) {
+
+            null
+
+        }
+
+    }
+
+    private suspend fun <T : Object, R> collect(functions: List<TdApi.Function>, await: suspend (Deferred<T>) -> R): List<R> {
+
+        val permits = Semaphore(concurrency)
+
+        val pending = ArrayList<Deferred<T>>(functions.size)
+
+        try {
+
+            for (function in functions) {
+
+                permits.acquire()
+
+                // 不作为调用者的子任务, 单个请求失败不会直接取消调用者.
+
+                val deferred = client.sendAsync<T>(function, null)
+
+                deferred.invokeOnCompletion { permits.release() }
+
+                pending.add(deferred)
+
+            }
+
+            return pending.map { await(it) }
+
+        } finally {
+
+            // 出错或调用者被取消时移除剩余请求的回调.
+
+            pending.forEach { if (!it.isCompleted) it.cancel() }
+
+        }
+
+    }
+
+    companion object {
+
+        const val DEFAULT_CONCURRENCY = 64
+
+    }
+
+}
@@ -18,15 +18,11 @@ package nekox.core.client
 
 import cn.hutool.core.util.ZipUtil
 import kotlinx.coroutines.coroutineScope
-import kotlinx.coroutines.delay
-import nekox.TdEnv
 import nekox.core.Fn
 import nekox.core.client.TdBotAbsHandler.Reject
 import nekox.core.fromPrivate
 import nekox.core.shift
 import nekox.core.utils.makeAnswer
-import nekox.core.utils.readDataFrom
-import nekox.core.utils.writeDataTo
 import td.TdApi.*
 import java.util.*
 
@@ -41,41 +37,11 @@ open class TdBot(val botToken: String) : TdClient(initDataDir("data/${botToken.s
     val callbacks = HashMap<Int, TdBotAbsHandler>()
 
     val persistHandlers = HashMap<Int, TdBotAbsHandler>()
-    val persists = HashMap<Int, TdPerstst>()
+    val persists = TdPersistStore(this)
 
     override suspend fun onLogin() {
 
-        readDataFrom("user_persists")?.forEach {
-
-            val userId = it[0].toInt()
-
-            val persistId = it[1].toInt()
-
-            val subId = it[2].toInt()
-
-            val allowFuction = it[3].toInt() == 1
-
-            val allowCancel = it[4].toInt() == 1
-
-            val createAt = it[5].toInt()
-
-            val data = it.shift(5).toList()
-
-            val handler = (persistHandlers[persistId] ?: error("Invalid Persist ID #${persistId}"))
-
-            runCatching {
-
-                handler.onPersistReStore(userId, subId, data)
-
-            }.onFailure {
-
-                return@forEach
-
-            }
-
-            sudo.persists[userId] = TdPerstst(userId, persistId, subId, allowFuction, allowCancel, createAt)
-
-        }
+        persists.load()
 
     }
 
@@ -83,41 +49,7 @@ open class TdBot(val botToken: String) : TdClient(initDataDir("data/${botToken.s
 
         super<TdBotAbsHandler>.onDestroy()
 
-        val dataList = LinkedList<List<String>>()
-
-        persists.forEach { (userId, persist) ->
-
-            val data = LinkedList<String>()
-
-            data.add("$userId")
-
-            data.add("${persist.persistId}")
-
-            data.add("${persist.subId}")
-
-            data.add("${persist.allowFuction}")
-
-            data.add("${persist.allowCancel}")
-
-            data.add("${persist.createAt}")
-
-            data.add("${persist.persistId}")
-
-            runCatching {
-
-                onPersistStore(userId, persist.subId, data)
-
-            }.onFailure {
-
-                return@forEach
-
-            }
-
-            dataList.add(data)
-
-        }
-
-        writeDataTo("user_persists", dataList)
+        persists.close()
 
     }
 
@@ -141,7 +73,7 @@ open class TdBot(val botToken: String) : TdClient(initDataDir("data/${botToken.s
 
     override suspend fun onNewMessage(userId: Int, chatId: Long, message: Message) = coroutineScope function@{
 
-        while (!auth) delay(100L)
+        waitForLogin()
 
         if (userId == me.id) return@function
 
@@ -155,67 +87,15 @@ open class TdBot(val botToken: String) : TdClient(initDataDir("data/${botToken.s
 
             if (message.content !is MessageText) return@predict
 
-            val content = (message.content as MessageText).text
-
-            var param = content.text
+            val parsed = commands.parse((message.content as MessageText).text.text, me.username) ?: return@predict
 
-            run fn@{
+            val function = parsed.function.function
 
-                TdEnv.FUN_PREFIX.forEach {
+            val param = parsed.function.param
 
-                    if (!param.startsWith(it)) return@forEach
+            val params = parsed.params
 
-                    param = param.substring(it.length)
-
-                    return@fn
-
-                }
-
-                return@predict
-
-            }
-
-            var function = if (!param.contains(' ')) {
-
-                param.also {
-
-                    param = ""
-
-                }
-
-            } else {
-
-                param.substringBefore(' ').also {
-
-                    param = param.substringAfter(' ')
-
-                }
-
-            }
-
-            val validSuffix = "@${me.username}"
-
-            if (function.endsWith(validSuffix)) {
-
-                function = function.substring(0, function.length - validSuffix.length)
-
-            }
-
-            val params: Array<String>
-
-            val originParams: Array<String>
-
-            if (param.isBlank()) {
-
-                originParams = arrayOf()
-                params = originParams
-
-            } else {
-
-                originParams = param.split(' ').toTypedArray()
-                params = param.replace("  ", " ").split(' ').toTypedArray()
-
-            }
+            val originParams = parsed.originParams
 
             try {
 
@@ -226,7 +106,12 @@ open class TdBot(val botToken: String) : TdClient(initDataDir("data/${botToken.s
 
                     if (function == "cancel" && persist.allowCancel) {
 
-                        sudo removePersist userId
+                        if (!persists.remove(userId, persist)) return@persist
+
+                        // 与 removePersist 相同的回调, 之后才是取消的回调.
+
+                        handler.onPersistRemove(userId, persist.subId)
+                        handler.onPersistRemoveOrCancel(userId, persist.subId)
 
                         handler.onPersistCancel(userId, chatId, message, persist.subId)
 
@@ -236,7 +121,10 @@ open class TdBot(val botToken: String) : TdClient(initDataDir("data/${botToken.s
 
                     } else if (!persist.allowFuction && persist.allowCancel) {
 
-                        sudo removePersist userId
+                        if (!persists.remove(userId, persist)) return@persist
+
+                        handler.onPersistRemove(userId, persist.subId)
+                        handler.onPersistRemoveOrCancel(userId, persist.subId)
 
                         handler.onPersistCancel(userId, chatId, message, persist.subId)
 
@@ -282,7 +170,7 @@ open class TdBot(val botToken: String) : TdClient(initDataDir("data/${botToken.s
 
                     }
 
-                } else if (!functions.containsKey(function)) {
+                } else if (parsed.command == null && !functions.containsKey(function)) {
 
                     handlers.filterIsInstance<TdBotAbsHandler>().forEach {
 
@@ -296,7 +184,21 @@ open class TdBot(val botToken: String) : TdClient(initDataDir("data/${botToken.s
 
                 } else {
 
-                    functions[function]!!.onFunction(userId, chatId, message, function, param, params, originParams)
+                    val command = parsed.command
+
+                    val handler = command?.handler as TdBotAbsHandler? ?: functions[function]!!
+
+                    val error = command?.schema?.check(params)
+
+                    if (error != null) {
+
+                        handler.onInvalidArguments(userId, chatId, message, function, command.schema, error)
+
+                    } else {
+
+                        handler.onFunction(userId, chatId, message, function, param, params, originParams)
+
+                    }
 
                 }
 
@@ -16,9 +16,11 @@
 
 package nekox.core.client
 
+import nekox.TdEnv
 import nekox.core.fromPrivate
 import nekox.core.toLink
 import nekox.core.utils.delete
+import nekox.core.utils.make
 import td.TdApi.Message
 import java.util.*
 
@@ -41,9 +43,18 @@ interface TdBotAbsHandler : TdAbsHandler {
 
     fun initFunction(vararg functions: String) {
 
-        functions.forEach { function ->
+        functions.forEach { initCommand(it) }
 
-            sudo.functions.put(function, this)?.apply {
+    }
+
+    /**
+     * 注册命令 [function] 及其别名 [aliases]. [args] 为参数格式 (见 [TdArgSchema]), 参数不符时调用 [onInvalidArguments].
+     */
+    fun initCommand(function: String, vararg aliases: String, args: String? = null) {
+
+        (arrayOf(function) + aliases).forEach {
+
+            sudo.functions.put(it, this)?.apply {
 
                 error("function name alredy used by $this.")
 
@@ -51,6 +62,8 @@ interface TdBotAbsHandler : TdAbsHandler {
 
         }
 
+        sudo.commands.register(function, aliases, this, args?.let { TdArgSchema(it) })
+
     }
 
     fun initData(dataId: Int) {
@@ -83,9 +96,9 @@ interface TdBotAbsHandler : TdAbsHandler {
 
     }
 
-    fun writePersist(userId: Int, peristId: Int, subId: Int = 0, allowFunction: Boolean = false, allowCancel: Boolean = true) {
+    fun writePersist(userId: Int, peristId: Int, subId: Int = 0, allowFunction: Boolean = false, allowCancel: Boolean = true, timeout: Long = sudo.options.persistTimeout) {
 
-        val persist = TdPerstst(userId, peristId, subId, allowCancel, allowCancel)
+        val persist = TdPerstst(userId, peristId, subId, allowFunction, allowCancel, timeout = timeout)
 
         sudo.persists[userId] = persist
 
@@ -109,6 +122,14 @@ interface TdBotAbsHandler : TdAbsHandler {
     suspend fun onFunction(userId: Int, chatId: Long, message: Message, function: String, param: String, params: Array<String>, originParams: Array<String>)
     suspend fun onUndefinedFunction(userId: Int, chatId: Long, message: Message, function: String, param: String, params: Array<String>, originParams: Array<String>)
 
+    suspend fun onInvalidArguments(userId: Int, chatId: Long, message: Message, function: String, schema: TdArgSchema, error: String) {
+
+        if (!message.fromPrivate) return
+
+        sudo make "$error\n${TdEnv.FUN_PREFIX[0]}$function ${schema.usage}" replyTo message.id sendTo chatId
+
+    }
+
     suspend fun onStartPayload(userId: Int, chatId: Long, message: Message, payload: String, params: Array<String>)
     suspend fun onUndefinedPayload(userId: Int, chatId: Long, message: Message, payload: String, params: Array<String>)
 
@@ -149,7 +170,7 @@ interface TdBotAbsHandler : TdAbsHandler {
     fun onPersistStore(userId: Int, subId: Int, data: LinkedList<String>)
     fun onPersistReStore(userId: Int, subId: Int, data: List<String>)
 
-    class Reject : RuntimeException("Reject Function")
+    class Reject : RuntimeException("Reject Function", null, false, false)
 
     fun rejectFunction(): Unit = throw Reject()
 
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * 请求的调用位置, 只在出错需要报告时才展开成 [StackTraceElement].
+ */
+class TdCallSite private constructor(private val trace: Throwable?, private val skip: Int, private val frame: StackWalker.StackFrame?) {
+
+    val stackTrace: Array<StackTraceElement>
+        get() {
+
+            if (frame != null) return arrayOf(frame.toStackTraceElement())
+
+            val elements = trace!!.stackTrace
+
+            return elements.copyOfRange(skip.coerceAtMost(elements.size), elements.size)
+
+        }
+
+    enum class Mode {
+
+        /**
+         * 不记录调用位置.
+         */
+        OFF,
+
+        /**
+         * 只记录调用者所在的一帧 (类与行号).
+         */
+        CALL_SITE,
+
+        /**
+         * 按 1 / [sampleRate] 的概率记录完整调用栈.
+         */
+        SAMPLED,
+
+        /**
+         * 总是记录完整调用栈, 用于调试.
+         */
+        FULL
+
+    }
+
+    companion object {
+
+        var mode = Mode.CALL_SITE
+
+        var sampleRate = 100
+
+        private val walker = StackWalker.getInstance()
+
+        /**
+         * 记录调用 capture 的方法的调用者, 再向上跳过 [skip] 帧.
+         */
+        fun capture(skip: Int): TdCallSite? = when (mode) {
+
+            Mode.OFF -> null
+
+            Mode.CALL_SITE -> walker.walk { frames -> frames.skip(2L + skip).findFirst().orElse(null) }?.let { TdCallSite(null, 0, it) }
+
+            Mode.SAMPLED -> if (ThreadLocalRandom.current().nextInt(sampleRate) == 0) TdCallSite(Throwable(), 2 + skip, null) else null
+
+            Mode.FULL -> TdCallSite(Throwable(), 2 + skip, null)
+
+        }
+
+    }
+
+}
@@ -16,14 +16,98 @@
 
 package nekox.core.client
 
-import cn.hutool.core.thread.ThreadUtil
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.coroutineScope
 import nekox.core.*
+import td.TdApi
+import td.TdApi.Error
+import td.TdApi.Message
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
 
-class TdCallback<T>(stackIgnore: Int = 0, private var handler: (suspend CoroutineScope.(T) -> Unit)?) {
+class TdCallback<T> private constructor(
 
-    private val stackTrace: Array<StackTraceElement> = ThreadUtil.getStackTrace().shift(3 + stackIgnore)
+        private val callSite: TdCallSite?,
+        private var handler: (suspend CoroutineScope.(T) -> Unit)?,
+        private var direct: ((Any) -> Unit)?
+
+) {
+
+    constructor(stackIgnore: Int = 0, handler: (suspend CoroutineScope.(T) -> Unit)?) : this(TdCallSite.capture(stackIgnore), handler, null)
+
+    @Suppress("UNCHECKED_CAST")
+    internal constructor(continuation: CancellableContinuation<T>, callSite: TdCallSite?) : this(callSite, null, null) {
+
+        direct = { result ->
+
+            if (result is Error) continuation.resumeWithException(withCallSite(TdException(result))) else continuation.resume(result as T)
+
+        }
+
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    internal constructor(deferred: CompletableDeferred<T>, callSite: TdCallSite?) : this(callSite, null, null) {
+
+        direct = { result ->
+
+            if (result is Error) deferred.completeExceptionally(withCallSite(TdException(result))) else deferred.complete(result as T)
+
+        }
+
+    }
+
+    /**
+     * 在接收线程上直接处理响应, 不启动协程. [forward] 需要足够快且不能阻塞.
+     */
+    internal constructor(callSite: TdCallSite?, forward: (Any) -> Unit) : this(callSite, null, forward)
+
+    /**
+     * 由 sync / sendAsync 等待或直接转发的回调, 在接收线程上完成, 无需启动协程.
+     */
+    val isDirect get() = direct != null
+
+    /**
+     * 收到 SendMessage 的响应时在接收线程上调用, 用于在 UpdateMessageSendSucceeded 到达之前登记消息.
+     */
+    internal var onMessage: ((Message) -> Unit)? = null
+
+    /**
+     * 请求类型与发出时间 (System.nanoTime), 用于统计请求耗时.
+     */
+    internal var function: Class<out TdApi.Function>? = null
+
+    internal var sentAt = 0L
+
+    internal var deadline: TdTimingWheel.Timeout? = null
+
+    /**
+     * 等待中的 SendMessage 登记的消息 ID, 以及等待者是否已取消, 用于取消时移除登记.
+     */
+    @Volatile
+    internal var messageId = 0L
+
+    @Volatile
+    internal var cancelled = false
+
+    internal var requestId = 0L
+
+    /**
+     * 失败时由 [TdRetryPolicy] 重新发送的请求, 以及已经发送的次数.
+     */
+    internal var retry: TdApi.Function? = null
+
+    internal var attempts = 0
+
+    internal fun sent(function: TdApi.Function) {
+
+        this.function = function.javaClass
+
+        sentAt = System.nanoTime()
+
+    }
 
     private var errorHandler: (suspend CoroutineScope.(TdException) -> Unit)? = {
 
@@ -47,16 +131,36 @@ class TdCallback<T>(stackIgnore: Int = 0, private var handler: (suspend Coroutin
 
     }
 
-    @Suppress("UNCHECKED_CAST")
-    suspend fun postResult(result: Any) = coroutineScope {
+    private fun withCallSite(error: TdException) = error.also {
 
-        handler?.invoke(this, result as T)
+        if (callSite != null) it.stackTrace = callSite.stackTrace
 
     }
 
-    suspend fun postError(error: TdException) = coroutineScope {
+    internal fun complete(result: Any) = direct!!(result)
+
+    suspend fun postResult(result: Any) {
+
+        if (direct != null) return complete(result)
+
+        coroutineScope {
+
+            @Suppress("UNCHECKED_CAST")
+            handler?.invoke(this, result as T)
+
+        }
+
+    }
+
+    suspend fun postError(error: TdException) {
+
+        if (direct != null) return complete(error.error)
+
+        coroutineScope {
+
+            errorHandler?.invoke(this, withCallSite(error))
 
-        errorHandler?.invoke(this, error.also { it.stackTrace = stackTrace })
+        }
 
     }
 
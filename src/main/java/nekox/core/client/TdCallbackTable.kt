@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * 按请求 ID 查找回调的表.
+ *
+ * 请求 ID 单调递增, 所以用 `requestId & (capacity - 1)` 作为下标的环形数组即可容纳绝大多数请求,
+ * 不需要装箱也不需要额外的节点. 只有当对应位置仍被更早的未响应请求占用时, 才放入 [overflow].
+ */
+class TdCallbackTable(capacity: Int = 8192) {
+
+    init {
+
+        check(capacity > 0 && capacity and (capacity - 1) == 0) { "capacity 必须是 2 的幂" }
+
+    }
+
+    private val mask = capacity - 1L
+
+    private val slots = AtomicReferenceArray<TdCallback<*>?>(capacity)
+
+    private val overflow = ConcurrentHashMap<Long, TdCallback<*>>()
+
+    private val count = LongAdder()
+
+    val size get() = count.sum().toInt()
+
+    operator fun set(requestId: Long, callback: TdCallback<*>) {
+
+        callback.requestId = requestId
+
+        if (!slots.compareAndSet((requestId and mask).toInt(), null, callback)) overflow[requestId] = callback
+
+        count.increment()
+
+    }
+
+    operator fun get(requestId: Long): TdCallback<*>? {
+
+        val callback = slots.get((requestId and mask).toInt())
+
+        if (callback != null && callback.requestId == requestId) return callback
+
+        return overflow[requestId]
+
+    }
+
+    fun remove(requestId: Long): TdCallback<*>? {
+
+        val index = (requestId and mask).toInt()
+
+        val callback = slots.get(index)
+
+        if (callback != null && callback.requestId == requestId && slots.compareAndSet(index, callback, null)) {
+
+            count.decrement()
+
+            return callback
+
+        }
+
+        return overflow.remove(requestId)?.also { count.decrement() }
+
+    }
+
+}
@@ -16,7 +16,6 @@
 
 package nekox.core.client
 
-import cn.hutool.core.thread.ThreadUtil
 import cn.hutool.core.util.RuntimeUtil
 import kotlinx.coroutines.*
 import nekox.TdEnv
@@ -28,9 +27,12 @@ import td.TdApi.*
 import td.TdNative
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
-import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 import kotlin.reflect.KClass
 
 open class TdClient(val options: TdOptions) : TdAbsHandler {
@@ -39,7 +41,7 @@ open class TdClient(val options: TdOptions) : TdAbsHandler {
 
     override fun onLoad(client: TdClient) = onLoad()
 
-    var handlers = LinkedList<TdAbsHandler>()
+    val handlers = TdHandlers()
 
     init {
 
@@ -47,21 +49,95 @@ open class TdClient(val options: TdOptions) : TdAbsHandler {
 
     }
 
+    private val startedSignal = CompletableDeferred<Unit>()
+    private val authSignal = CompletableDeferred<Boolean>()
+    private val loginSignal = CompletableDeferred<Unit>()
+    private val closedSignal = CompletableDeferred<Unit>()
+
     var start by AtomicBoolean(false)
-    var started by AtomicBoolean(false)
-    var authing by AtomicBoolean(false)
-    var auth by AtomicBoolean(false)
+
+    @Volatile
+    var started = false
+        set(value) {
+            field = value
+            if (value) startedSignal.complete(Unit)
+        }
+
+    @Volatile
+    var authing = false
+        set(value) {
+            field = value
+            if (!value) authSignal.complete(auth)
+        }
+
+    @Volatile
+    var auth = false
+        set(value) {
+            field = value
+            if (value) loginSignal.complete(Unit)
+        }
+
     var stop by AtomicBoolean(false)
-    var closed by AtomicBoolean(false)
 
-    private val clientId = TdNative.createNativeClient()
+    @Volatile
+    var closed = false
+        set(value) {
+            field = value
+            if (value) closedSignal.complete(Unit)
+        }
+
+    internal val clientId = TdNative.client.createNativeClient()
     private val requestId = AtomicLong(1)
 
-    private val callbacks = ConcurrentHashMap<Long, TdCallback<*>>()
+    private val callbacks = TdCallbackTable(options.callbackTableSize)
     private val messages = ConcurrentHashMap<Long, TdCallback<Message>>()
 
+    /**
+     * 等待响应的请求数, 包括等待 UpdateMessageSendSucceeded 的消息.
+     */
+    val pendingRequests get() = callbacks.size + messages.size
+
+    private val eventIds = LongArray(options.maxEvents)
+    private val eventObjs = arrayOfNulls<Object>(options.maxEvents)
+
     lateinit var me: User
 
+    lateinit var loop: EventLoop
+        private set
+
+    private var ordered: TdOrderedDispatcher? = null
+
+    val updates = TdUpdateQueue(this, options.updateQueueCapacity, options.overloadPolicy, options.updateQueueBlockTimeout)
+
+    val metrics = TdMetrics(this, options.metrics)
+
+    /**
+     * 命令路由, 由 [TdBotAbsHandler.initCommand] 注册, 供 [TdAbsHandler.parseFunction] 与 [TdBot] 解析命令.
+     */
+    val commands = TdCommandRouter()
+
+    /**
+     * 由更新维护的实体缓存, 未通过 [TdOptions.entityCache] 启用时为 null.
+     */
+    val entities = if (options.entityCache) EntityStore() else null
+
+    /**
+     * 完整信息缓存, 未通过 [TdOptions.fullInfoCache] 启用时为 null.
+     */
+    val fullInfos = if (options.fullInfoCacheSize > 0) FullInfoStore(options.fullInfoCacheSize, options.fullInfoTtl) else null
+
+    /**
+     * 发送消息的限流调度, 未通过 [TdOptions.rateLimit] 启用时为 null.
+     */
+    val scheduler = if (options.rateLimit) TdSendScheduler(this, options.globalRate, options.chatRate, options.groupRate, options.floodRetries) else null
+
+    private val storageDelegate = lazy { options.storage(TdEnv.getFile("data/${me.id}/.persist")) }
+
+    /**
+     * 持久化数据的存储, 见 [TdOptions.storage]. 登录后可用, 在 [stop] 时关闭.
+     */
+    val storage by storageDelegate
+
     fun addHandler(handler: TdAbsHandler) {
 
         handler.onLoad(this)
@@ -92,42 +168,29 @@ open class TdClient(val options: TdOptions) : TdAbsHandler {
 
         onLoad(this)
 
-        synchronized(postAdd) {
+        if (options.dispatchParallelism > 0) {
 
-            postAdd.add(this)
+            ordered = TdOrderedDispatcher(options.dispatchParallelism)
 
         }
 
-        if (!loopThreadInited) {
-
-            loopThread = Thread(::loopEvents, "Tooko Event Task")
+        loop = loops.minBy { it.load.get() }!!
 
-            loopThread.start()
-
-        }
+        loop.add(this)
 
     }
 
-    suspend fun waitForStart() {
-
-        while (!started) delay(100L)
-
-    }
+    suspend fun waitForStart() = startedSignal.await()
 
     suspend fun waitForAuth(): Boolean {
 
-        while (authing) delay(100L)
+        if (!authing) return auth
 
-        return auth
+        return authSignal.await()
 
     }
 
-    suspend fun waitForLogin() {
-
-        while (!auth) delay(100L)
-
-
-    }
+    suspend fun waitForLogin() = loginSignal.await()
 
     open fun stop() {
 
@@ -139,26 +202,17 @@ open class TdClient(val options: TdOptions) : TdAbsHandler {
 
         handlers.forEach { it.onDestroy() }
 
+        if (storageDelegate.isInitialized()) storage.close()
+
         sendRaw(Close())
 
     }
 
-    suspend fun waitForClose() {
-
-        while (!closed) delay(100)
-
-    }
+    suspend fun waitForClose() = closedSignal.await()
 
     fun <T : TdAbsHandler> findHandler(clazz: KClass<T>): T {
 
-        for (handler in LinkedList(handlers)) {
-
-            @Suppress("UNCHECKED_CAST")
-            if (clazz.isInstance(handler)) return handler as T
-
-        }
-
-        error("Hanlder ${clazz.java.name} not found !")
+        return handlers.find(clazz.java) ?: error("Hanlder ${clazz.java.name} not found !")
 
     }
 
@@ -188,23 +242,19 @@ open class TdClient(val options: TdOptions) : TdAbsHandler {
 
             defaultLog.info("认证正常 : [ ${me.displayName} @${me.username} ]")
 
-            for (handler in LinkedList(handlers)) handler.onLogin()
-
-            authing = false
+            for (handler in handlers) handler.onLogin()
 
             auth = true
 
+            authing = false
+
         } else if (authorizationState is AuthorizationStateLoggingOut) {
 
-            for (handler in LinkedList(handlers)) handler.onLogout()
+            for (handler in handlers) handler.onLogout()
 
         } else if (authorizationState is AuthorizationStateClosed) {
 
-            synchronized(postDestroy) {
-
-                postDestroy.add(sudo)
-
-            }
+            loop.destroy(sudo)
 
         }
 
@@ -219,7 +269,7 @@ open class TdClient(val options: TdOptions) : TdAbsHandler {
 
         try {
 
-            val callback = messages.remove(oldMessageId) ?: return
+            val callback = unregisterMessage(oldMessageId) ?: return
 
             callback.postResult(message)
 
@@ -233,7 +283,7 @@ open class TdClient(val options: TdOptions) : TdAbsHandler {
 
     override suspend fun onMessageSendFailed(message: Message, oldMessageId: Long, errorCode: Int, errorMessage: String) {
 
-        val callback = messages.remove(oldMessageId) ?: return
+        val callback = unregisterMessage(oldMessageId) ?: return
 
         try {
 
@@ -249,58 +299,49 @@ open class TdClient(val options: TdOptions) : TdAbsHandler {
 
     override suspend fun <T : Object> sync(function: TdApi.Function): T {
 
-        val stackTrace = ThreadUtil.getStackTrace().shift(3)
-
-        return withContext(Dispatchers.Unconfined) {
-
-            val responseAtomicReference = AtomicReference<Any>()
+        val callSite = TdCallSite.capture(0)
 
-            val executedAtomicBoolean = AtomicBoolean(false)
+        val requestId = requestId.getAndIncrement()
 
-            send<T>(function, 1) {
+        return suspendCancellableCoroutine { continuation ->
 
-                responseAtomicReference.set(it)
+            val callback = TdCallback(continuation, callSite)
 
-                executedAtomicBoolean.set(true)
+            register(requestId, if (function is SendMessage) forwardMessage(callback) else callback, function)
 
-            } onError {
+            continuation.invokeOnCancellation {
 
-                responseAtomicReference.set(it)
+                unregister(requestId)
 
-                executedAtomicBoolean.set(true)
+                cancelMessage(callback)
 
             }
 
-            while (!executedAtomicBoolean.get()) {
-
-                /*
+            try {
 
-                if (TdEnv.STOP.get()) {
+                sendRaw(requestId, function)
 
-                    throw TdException(Error(-1, "Server Stopped")).also {
+            } catch (e: IllegalStateException) {
 
-                        it.stackTrace = stackTrace
+                unregister(requestId)
 
-                    }
+                throw e
 
-                }
+            }
 
-                 */
+        }
 
-                delay(100L)
+    }
 
-            }
+    override suspend fun <T : Object> sync(function: TdApi.Function, timeout: Long): T {
 
-            @Suppress("UNCHECKED_CAST")
-            responseAtomicReference.get().apply {
+        return try {
 
-                if (this is TdException) throw TdException(error).also {
+            withTimeout(timeout) { sync<T>(function) }
 
-                    it.stackTrace = stackTrace
+        } catch (e: TimeoutCancellationException) {
 
-                }
-
-            } as T
+            throw TdException("Request Timeout")
 
         }
 
@@ -313,9 +354,11 @@ open class TdClient(val options: TdOptions) : TdAbsHandler {
 
         return if (function is SendMessage && block != null) {
 
-            TdCallback<Message>(1) {
+            val callback = TdCallback(stackIgnore + 1, block) as TdCallback<Message>
+
+            TdCallback<Message>(stackIgnore + 1, null).apply {
 
-                messages[it.id] = TdCallback(2, block) as TdCallback<Message>
+                onMessage = { registerMessage(it.id, callback) }
 
             } as TdCallback<T>
 
@@ -325,12 +368,72 @@ open class TdClient(val options: TdOptions) : TdAbsHandler {
 
         }.apply {
 
-            callbacks[requestId] = this
+            register(requestId, this, function)
+
+            sendRaw(requestId, function)
+
+        }
+
+    }
+
+    /**
+     * 发送请求, 返回的 Deferred 在接收线程上直接完成, 不为每个响应启动协程.
+     *
+     * 传入 [parent] 时, parent 结束 (包括取消) 时请求随之取消并移除回调. 请求失败不会取消 parent,
+     * 错误只在 await 时抛出.
+     */
+    fun <T : Object> sendAsync(function: TdApi.Function, parent: Job?, stackIgnore: Int = 0): Deferred<T> {
+
+        val requestId = requestId.getAndIncrement()
+
+        val deferred = CompletableDeferred<T>()
+
+        val callback = TdCallback(deferred, TdCallSite.capture(stackIgnore))
+
+        register(requestId, if (function is SendMessage) forwardMessage(callback) else callback, function)
+
+        // 不作为 parent 的子任务, 否则请求的错误会沿 parent 传到事件循环的 scope.
+
+        val handle = parent?.invokeOnCompletion { deferred.cancel() }
+
+        deferred.invokeOnCompletion {
+
+            handle?.dispose()
+
+            if (deferred.isCancelled) {
+
+                unregister(requestId)
+
+                cancelMessage(callback)
+
+            }
+
+        }
+
+        try {
 
             sendRaw(requestId, function)
 
+        } catch (e: IllegalStateException) {
+
+            unregister(requestId)
+
+            throw e
+
         }
 
+        return deferred
+
+    }
+
+    /**
+     * SendMessage 的响应只是发送中的消息, 在接收线程上登记后等待 UpdateMessageSendSucceeded 再完成 [callback].
+     */
+    @Suppress("UNCHECKED_CAST")
+    private fun forwardMessage(callback: TdCallback<*>) = TdCallback<Message>(null) { result ->
+
+        if (result is Message) registerMessage(result.id, callback as TdCallback<Message>) else callback.complete(result)
+
     }
 
     override fun sendRaw(function: TdApi.Function) {
@@ -345,7 +448,284 @@ open class TdClient(val options: TdOptions) : TdAbsHandler {
 
         check(!closed) { "已停止" }
 
-        TdNative.nativeClientSend(clientId, requestId, function)
+        val callback = callbacks[requestId]
+
+        if (callback != null && entities != null) {
+
+            val cached = entities.lookup(function)
+
+            if (cached != null && unregister(requestId) != null) return answer(callback, cached)
+
+        }
+
+        if (callback != null && fullInfos != null && callback.attempts == 0) {
+
+            val cached = fullInfos.cached(function)
+
+            if (cached != null && unregister(requestId) != null) return answer(callback, cached)
+
+            // 相同请求已在途, 等它的响应.
+
+            if (fullInfos.join(function, requestId)) return
+
+        }
+
+        if (metrics.enabled) callback?.sent(function)
+
+        if (callback != null && options.retryPolicy?.appliesTo(function) == true) {
+
+            if (callback.attempts++ == 0) options.retryPolicy!!.deposit()
+
+            callback.retry = function
+
+        }
+
+        if (scheduler != null && scheduler.offer(requestId, function, callback != null)) return
+
+        nativeSend(requestId, function)
+
+    }
+
+    internal fun sendQueued(requestId: Long, function: TdApi.Function) = nativeSend(requestId, function)
+
+    private val sending = AtomicInteger()
+
+    @Volatile
+    internal var destroying = false
+        private set
+
+    /**
+     * 所有 nativeClientSend 都经过这里: 开始销毁后不再发送, 销毁前等待正在进行的发送结束,
+     * 否则其他线程 (限流线程, 唤醒, 重试) 可能向已销毁的原生客户端发送.
+     */
+    private fun nativeSend(requestId: Long, function: TdApi.Function) {
+
+        sending.incrementAndGet()
+
+        try {
+
+            check(!destroying) { "已停止" }
+
+            TdNative.client.nativeClientSend(clientId, requestId, function)
+
+            if (::loop.isInitialized) loop.wakeFor(this)
+
+        } finally {
+
+            sending.decrementAndGet()
+
+        }
+
+    }
+
+    internal fun destroyNative() {
+
+        destroying = true
+
+        scheduler?.close()
+
+        while (sending.get() != 0) Thread.yield()
+
+        TdNative.client.destroyNativeClient(clientId)
+
+        ordered?.close()
+
+        closed = true
+
+    }
+
+    internal fun isPending(requestId: Long) = callbacks[requestId] != null
+
+    /**
+     * 接收线程收到错误时调用. 按 [TdOptions.retryPolicy] 需要重试时保留回调, 稍后以同一请求 ID 重新发送并返回 true.
+     */
+    private fun retry(requestId: Long, error: Error): Boolean {
+
+        val policy = options.retryPolicy ?: return false
+
+        val callback = callbacks[requestId] ?: return false
+
+        val function = callback.retry ?: return false
+
+        val delay = policy.nextDelay(callback.attempts, error)
+
+        if (delay < 0L) return false
+
+        deadlines.schedule(delay) {
+
+            // 等待期间被取消或超时的请求不再发送.
+
+            if (callbacks[requestId] !== callback) return@schedule
+
+            try {
+
+                sendRaw(requestId, function)
+
+            } catch (e: IllegalStateException) {
+
+                unregister(requestId)?.let { expire(it) }
+
+            }
+
+        }
+
+        return true
+
+    }
+
+    private fun register(requestId: Long, callback: TdCallback<*>, function: TdApi.Function) {
+
+        callbacks[requestId] = callback
+
+        if (options.requestTimeout > 0L && !isTransfer(function)) callback.deadline = deadlines.schedule(options.requestTimeout) {
+
+            callbacks.remove(requestId)?.let { expire(it) }
+
+        }
+
+    }
+
+    private fun unregister(requestId: Long) = callbacks.remove(requestId)?.also { it.deadline?.cancel() }
+
+    /**
+     * 等待 UpdateMessageSendSucceeded 的回调按 [TdOptions.sendTimeout] 而不是 [TdOptions.requestTimeout] 超时,
+     * 因为消息的发送包括上传文件.
+     */
+    private fun registerMessage(messageId: Long, callback: TdCallback<Message>) {
+
+        callback.messageId = messageId
+
+        messages[messageId] = callback
+
+        if (options.sendTimeout > 0L) callback.deadline = deadlines.schedule(options.sendTimeout) {
+
+            if (messages.remove(messageId, callback)) expire(callback)
+
+        }
+
+        // 等待者在登记之前已经取消.
+
+        if (callback.cancelled) cancelMessage(callback)
+
+    }
+
+    private fun unregisterMessage(messageId: Long) = messages.remove(messageId)?.also { it.deadline?.cancel() }
+
+    /**
+     * 等待者取消时移除其登记的消息, 登记可能发生在取消之后, 由 [registerMessage] 再检查一次.
+     */
+    private fun cancelMessage(callback: TdCallback<*>) {
+
+        callback.cancelled = true
+
+        val messageId = callback.messageId
+
+        if (messageId == 0L) return
+
+        messages.computeIfPresent(messageId) { _, it -> it.takeIf { it !== callback } }
+
+        callback.deadline?.cancel()
+
+    }
+
+    /**
+     * 文件的下载与上传可能远超 [TdOptions.requestTimeout] 而 TDLib 仍在正常进行, 不设超时.
+     */
+    private fun isTransfer(function: TdApi.Function) = function is DownloadFile || function is UploadFile || function is UploadStickerFile || function is ReadFilePart
+
+    /**
+     * 不经过 TDLib, 直接以 [result] 应答.
+     */
+    private fun answer(callback: TdCallback<*>, result: Object) {
+
+        if (callback.isDirect) {
+
+            callback.complete(result)
+
+        } else {
+
+            GlobalScope.launch(Dispatchers.Default) {
+
+                runCatching {
+
+                    if (result is Error) callback.postError(TdException(result)) else callback.postResult(result)
+
+                }.onFailure {
+
+                    defaultLog.error(it, "TdError - Sync")
+
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * 超过 [TdOptions.requestTimeout] 仍未响应, 以 TdException 结束请求.
+     */
+    private fun expire(callback: TdCallback<*>) {
+
+        metrics.expired()
+
+        val error = TdException("Request Timeout")
+
+        if (callback.isDirect) {
+
+            callback.complete(error.error)
+
+        } else {
+
+            GlobalScope.launch(Dispatchers.Default) { callback.postError(error) }
+
+        }
+
+    }
+
+    internal fun launchUpdate(update: Object, task: suspend () -> Unit) {
+
+        val ordered = ordered
+
+        if (ordered != null && !TdOrderedDispatcher.isInternal(update)) {
+
+            ordered.dispatch(update, task)
+
+        } else {
+
+            loop.events.launch { task() }
+
+        }
+
+    }
+
+    internal suspend fun handleUpdate(eventObj: Object) {
+
+        val index = TdUpdates.indexOf(eventObj.constructor)
+
+        if (index == -1) return
+
+        for (handler in handlers.forUpdate(index)) {
+
+            val start = System.nanoTime()
+
+            val result = handler.runCatching {
+
+                TdUpdates.dispatch(this, index, eventObj)
+
+            }
+
+            metrics.handled(handler, System.nanoTime() - start)
+
+            result.onFailure {
+
+                if (it is TdAbsHandler.Finish) return
+
+                defaultLog.error(it, "TdError - Sync")
+
+            }
+
+        }
 
     }
 
@@ -386,208 +766,344 @@ open class TdClient(val options: TdOptions) : TdAbsHandler {
 
         }
 
-        @Suppress("EXPERIMENTAL_API_USAGE")
-        val events = CoroutineScope(newSingleThreadContext("Tooko Events Task"))
+        /**
+         * 事件循环 (接收线程) 的数量, 需在第一个客户端启动前设置.
+         * 每个循环拥有一部分客户端和自己的事件分发线程.
+         */
+        var loopCount = 1
 
-        private val postAdd = LinkedList<TdClient>()
-        private val postDestroy = LinkedList<TdClient>()
-        val clients = LinkedList<TdClient>()
+        val loops by lazy { Array(loopCount) { EventLoop(it) } }
 
-        private const val MAX_EVENTS = 1000
+        val events get() = loops[0].events
 
-        lateinit var loopThread: Thread
+        val clients get() = loops.flatMap { it.clients.asList() }
 
-        val loopThreadInited get() = ::loopThread.isInitialized
+        enum class ReceiveMode {
 
-        fun loopEvents() = runBlocking {
+            /**
+             * 以零超时轮询, 延迟最低, 空闲时占满一个核心.
+             */
+            SPIN,
 
-            while (true) {
+            /**
+             * 单个客户端时阻塞等待, 多个客户端共享循环时空闲退避.
+             */
+            BLOCKING
+
+        }
 
-                synchronized(postAdd) {
+        var receiveMode = ReceiveMode.BLOCKING
 
-                    val iter = postAdd.iterator()
+        /**
+         * 循环只有一个客户端时, 单次接收阻塞的最长秒数.
+         */
+        var receiveTimeout = 1.0
 
-                    while (iter.hasNext()) {
+        /**
+         * 多个客户端共享循环时, 空闲退避的上限秒数 (一轮总计).
+         */
+        var sharedReceiveTimeout = 0.05
 
-                        val toAdd = iter.next()
+        private const val MIN_BACKOFF = 0.001
 
-                        clients.add(toAdd)
+        private const val LAG_PROBE_INTERVAL = 1000_000_000L
 
-                        iter.remove()
+        /**
+         * 所有客户端共享的请求超时时间轮, 也用于 [TdPersistStore] 的状态超时.
+         */
+        internal val deadlines by lazy { TdTimingWheel() }
 
-                        toAdd.started = true
+        class EventLoop internal constructor(val index: Int) {
+
+            @Suppress("EXPERIMENTAL_API_USAGE")
+            val events = CoroutineScope(SupervisorJob() + newSingleThreadContext("Tooko Events Task #$index"))
+
+            private val postAdd = LinkedList<TdClient>()
+
+            private val addLock = ReentrantLock()
+
+            private val added = addLock.newCondition()
+            private val postDestroy = LinkedList<TdClient>()
+
+            @Volatile
+            var clients = arrayOf<TdClient>()
+                private set
+
+            internal val load = AtomicInteger()
+
+            private var thread: Thread? = null
+
+            @Volatile
+            private var blockedOn: TdClient? = null
+
+            private val wakePending = AtomicBoolean()
+
+            /**
+             * 本轮接收开始后有客户端发出了请求, 其余的接收不再阻塞.
+             */
+            @Volatile
+            private var requested = false
+
+            /**
+             * 投递到 [events] 的任务从投递到开始执行的延迟, 每 [LAG_PROBE_INTERVAL] 纳秒采样一次.
+             */
+            val lag = TdMetrics.Histogram()
+
+            private var lastProbe = 0L
+
+            internal fun add(client: TdClient) {
+
+                load.incrementAndGet()
+
+                addLock.withLock {
+
+                    postAdd.add(client)
+
+                    added.signalAll()
+
+                    if (thread == null) {
+
+                        thread = Thread(::loopEvents, "Tooko Event Task #$index").apply { start() }
 
                     }
 
                 }
 
+                wakeUp()
+
+            }
+
+            internal fun destroy(client: TdClient) {
+
                 synchronized(postDestroy) {
 
-                    val iter = postDestroy.iterator()
+                    postDestroy.add(client)
+
+                }
+
+                wakeUp()
+
+            }
+
+            private fun wakeUp() {
+
+                // 向正在阻塞接收的客户端发送空请求, 其响应没有对应的回调, 会被直接丢弃.
+                // 正在销毁的客户端不再发送, nativeSend 也会拒绝在销毁开始后到达的发送.
+
+                val client = blockedOn ?: return
+
+                if (!client.destroying) runCatching { client.sendRaw(TestCallEmpty()) }
+
+            }
+
+            /**
+             * 共享循环正阻塞在另一个客户端上时, [sender] 的响应要等这次接收超时才能取到, 唤醒循环,
+             * 本轮其余的接收也不再阻塞. 每次阻塞最多唤醒一次.
+             */
+            internal fun wakeFor(sender: TdClient) {
+
+                requested = true
+
+                val client = blockedOn ?: return
+
+                if (client === sender || !wakePending.compareAndSet(false, true)) return
+
+                if (!client.destroying) runCatching { client.sendRaw(TestCallEmpty()) }
+
+            }
+
+            private fun loopEvents() = runBlocking {
+
+                var backoff = 0.0
+
+                while (true) {
+
+                    addLock.withLock {
 
-                    while (iter.hasNext()) {
+                        val iter = postAdd.iterator()
 
-                        val toDestroy = iter.next()
+                        while (iter.hasNext()) {
 
-                        clients.remove(toDestroy)
+                            val toAdd = iter.next()
 
-                        TdNative.destroyNativeClient(toDestroy.clientId)
+                            clients += toAdd
 
-                        toDestroy.closed = true
+                            iter.remove()
 
-                        iter.remove()
+                            toAdd.started = true
+
+                        }
 
                     }
 
-                }
+                    synchronized(postDestroy) {
 
-                if (clients.isEmpty()) {
+                        val iter = postDestroy.iterator()
 
-                    delay(1000L)
+                        while (iter.hasNext()) {
 
-                    continue
+                            val toDestroy = iter.next()
 
-                }
+                            clients = clients.filter { it != toDestroy }.toTypedArray()
+
+                            load.decrementAndGet()
+
+                            toDestroy.destroyNative()
 
-                for (client in clients) {
+                            iter.remove()
 
-                    val eventIds = LongArray(MAX_EVENTS)
-                    val eventObjs = arrayOfNulls<Object>(MAX_EVENTS)
+                        }
 
-                    val resultCount = TdNative.nativeClientReceive(client.clientId, eventIds, eventObjs, 0.0)
+                    }
 
-                    if (resultCount == 0) continue
+                    if (clients.isEmpty()) {
 
-                    for (index in 0 until resultCount) {
+                        addLock.withLock {
 
-                        val requestId = eventIds[index]
-                        val eventObj = eventObjs[index]!!
+                            if (postAdd.isEmpty()) added.await(1000L, TimeUnit.MILLISECONDS)
 
-                        if (requestId != 0L) {
+                        }
 
-                            if (!client.callbacks.containsKey(requestId)) continue
+                        continue
 
-                            val callback = client.callbacks.remove(requestId)!!
+                    }
 
-                            launch(Dispatchers.Default) {
+                    val timeout = when {
 
-                                runCatching {
+                        receiveMode == ReceiveMode.SPIN -> 0.0
 
-                                    if (eventObj is Error) {
+                        clients.size == 1 -> receiveTimeout
 
-                                        callback.postError(TdException(eventObj))
+                        else -> backoff / clients.size
 
-                                    } else {
+                    }
 
-                                        callback.postResult(eventObj)
+                    var received = false
 
-                                    }
+                    var paused = false
+
+                    requested = false
+
+                    for (client in clients) {
+
+                        // 更新队列已满的客户端暂不接收, 不影响其他客户端.
+
+                        if (client.updates.paused) {
+
+                            paused = true
+
+                            continue
+
+                        }
+
+                        val eventIds = client.eventIds
+                        val eventObjs = client.eventObjs
+
+                        var wait = timeout
+
+                        if (wait > 0.0) {
 
-                                }.onFailure {
+                            wakePending.set(false)
 
-                                    defaultLog.error(it, "TdError - Sync")
+                            blockedOn = client
+
+                            // 与 wakeFor 相反的顺序读写: 要么这里看到新请求不再阻塞, 要么 wakeFor 看到 blockedOn 并唤醒.
+
+                            if (requested) wait = 0.0
+
+                        }
+
+                        val resultCount = TdNative.client.nativeClientReceive(client.clientId, eventIds, eventObjs, wait)
+
+                        blockedOn = null
+
+                        if (resultCount == 0) continue
+
+                        received = true
+
+                        for (index in 0 until resultCount) {
+
+                            val requestId = eventIds[index]
+                            val eventObj = eventObjs[index]!!
+
+                            eventObjs[index] = null
+
+                            if (requestId != 0L) {
+
+                                if (client.scheduler != null && client.scheduler.onResponse(requestId, eventObj)) continue
+
+                                if (eventObj is Error && client.retry(requestId, eventObj)) continue
+
+                                client.fullInfos?.onResponse(requestId, eventObj)?.forEach { follower ->
+
+                                    client.unregister(follower)?.let { client.answer(it, eventObj) }
 
                                 }
 
-                            }
+                                val callback = client.unregister(requestId) ?: continue
+
+                                client.metrics.request(callback, eventObj)
+
+                                if (callback.isDirect) {
+
+                                    callback.complete(eventObj)
+
+                                    continue
+
+                                }
 
-                        } else {
-
-                            events.launch {
-
-                                for (it in LinkedList(client.handlers)) {
-
-                                    it.runCatching {
-
-                                        when (eventObj) {
-
-                                            is UpdateAuthorizationState -> onAuthorizationState(eventObj.authorizationState)
-                                            is UpdateNewMessage -> onNewMessage(eventObj.message.senderUserId, eventObj.message.chatId, eventObj.message)
-                                            is UpdateMessageSendAcknowledged -> onMessageSendAcknowledged(eventObj.chatId, eventObj.messageId)
-                                            is UpdateMessageSendSucceeded -> onMessageSendSucceeded(eventObj.message, eventObj.oldMessageId)
-                                            is UpdateMessageSendFailed -> onMessageSendFailed(eventObj.message, eventObj.oldMessageId, eventObj.errorCode, eventObj.errorMessage)
-                                            is UpdateMessageContent -> onMessageContent(eventObj.chatId, eventObj.messageId, eventObj.newContent)
-                                            is UpdateMessageEdited -> onMessageEdited(eventObj.chatId, eventObj.messageId, eventObj.editDate, eventObj.replyMarkup)
-                                            is UpdateMessageViews -> onMessageViews(eventObj.chatId, eventObj.messageId, eventObj.views)
-                                            is UpdateMessageContentOpened -> onMessageContentOpened(eventObj.chatId, eventObj.messageId)
-                                            is UpdateMessageMentionRead -> onMessageMentionRead(eventObj.chatId, eventObj.messageId, eventObj.unreadMentionCount)
-                                            is UpdateNewChat -> onNewChat(eventObj.chat)
-                                            is UpdateChatTitle -> onChatTitle(eventObj.chatId, eventObj.title)
-                                            is UpdateChatPhoto -> onChatPhoto(eventObj.chatId, eventObj.photo)
-                                            is UpdateChatPermissions -> onChatPermissions(eventObj.chatId, eventObj.permissions)
-                                            is UpdateChatLastMessage -> onChatLastMessage(eventObj.chatId, eventObj.lastMessage, eventObj.order)
-                                            is UpdateChatOrder -> onChatOrder(eventObj.chatId, eventObj.order)
-                                            is UpdateChatIsPinned -> onChatIsPinned(eventObj.chatId, eventObj.isPinned, eventObj.order)
-                                            is UpdateChatIsMarkedAsUnread -> onChatIsMarkedAsUnread(eventObj.chatId, eventObj.isMarkedAsUnread)
-                                            is UpdateChatIsSponsored -> onChatIsSponsored(eventObj.chatId, eventObj.isSponsored, eventObj.order)
-                                            is UpdateChatDefaultDisableNotification -> onChatDefaultDisableNotification(eventObj.chatId, eventObj.defaultDisableNotification)
-                                            is UpdateChatReadInbox -> onChatReadInbox(eventObj.chatId, eventObj.lastReadInboxMessageId, eventObj.unreadCount)
-                                            is UpdateChatReadOutbox -> onChatReadOutbox(eventObj.chatId, eventObj.lastReadOutboxMessageId)
-                                            is UpdateChatUnreadMentionCount -> onChatUnreadMentionCount(eventObj.chatId, eventObj.unreadMentionCount)
-                                            is UpdateChatNotificationSettings -> onChatNotificationSettings(eventObj.chatId, eventObj.notificationSettings)
-                                            is UpdateScopeNotificationSettings -> onScopeNotificationSettings(eventObj.scope, eventObj.notificationSettings)
-                                            is UpdateChatPinnedMessage -> onChatPinnedMessage(eventObj.chatId, eventObj.pinnedMessageId)
-                                            is UpdateChatReplyMarkup -> onChatReplyMarkup(eventObj.chatId, eventObj.replyMarkupMessageId)
-                                            is UpdateChatDraftMessage -> onChatDraftMessage(eventObj.chatId, eventObj.draftMessage, eventObj.order)
-                                            is UpdateChatOnlineMemberCount -> onChatOnlineMemberCount(eventObj.chatId, eventObj.onlineMemberCount)
-                                            is UpdateNotification -> onNotification(eventObj.notificationGroupId, eventObj.notification)
-                                            is UpdateNotificationGroup -> onNotificationGroup(eventObj.notificationGroupId, eventObj.type, eventObj.chatId, eventObj.notificationSettingsChatId, eventObj.isSilent, eventObj.totalCount, eventObj.addedNotifications, eventObj.removedNotificationIds)
-                                            is UpdateActiveNotifications -> onActiveNotifications(eventObj.groups)
-                                            is UpdateHavePendingNotifications -> onHavePendingNotifications(eventObj.haveDelayedNotifications, eventObj.haveUnreceivedNotifications)
-                                            is UpdateDeleteMessages -> onDeleteMessages(eventObj.chatId, eventObj.messageIds, eventObj.isPermanent, eventObj.fromCache)
-                                            is UpdateUserChatAction -> onUserChatAction(eventObj.chatId, eventObj.userId, eventObj.action)
-                                            is UpdateUserStatus -> onUserStatus(eventObj.userId, eventObj.status)
-                                            is UpdateUser -> onUser(eventObj.user)
-                                            is UpdateBasicGroup -> onBasicGroup(eventObj.basicGroup)
-                                            is UpdateSupergroup -> onSupergroup(eventObj.supergroup)
-                                            is UpdateSecretChat -> onSecretChat(eventObj.secretChat)
-                                            is UpdateUserFullInfo -> onUserFullInfo(eventObj.userId, eventObj.userFullInfo)
-                                            is UpdateBasicGroupFullInfo -> onBasicGroupFullInfo(eventObj.basicGroupId, eventObj.basicGroupFullInfo)
-                                            is UpdateSupergroupFullInfo -> onSupergroupFullInfo(eventObj.supergroupId, eventObj.supergroupFullInfo)
-                                            is UpdateServiceNotification -> onServiceNotification(eventObj.type, eventObj.content)
-                                            is UpdateFile -> onFile(eventObj.file)
-                                            is UpdateFileGenerationStart -> onFileGenerationStart(eventObj.generationId, eventObj.originalPath, eventObj.destinationPath, eventObj.conversion)
-                                            is UpdateFileGenerationStop -> onFileGenerationStop(eventObj.generationId)
-                                            is UpdateCall -> onCall(eventObj.call)
-                                            is UpdateUserPrivacySettingRules -> onUserPrivacySettingRules(eventObj.setting, eventObj.rules)
-                                            is UpdateUnreadMessageCount -> onUnreadMessageCount(eventObj.unreadCount, eventObj.unreadUnmutedCount)
-                                            is UpdateUnreadChatCount -> onUnreadChatCount(eventObj.unreadCount, eventObj.unreadUnmutedCount, eventObj.markedAsUnreadCount, eventObj.markedAsUnreadUnmutedCount)
-                                            is UpdateOption -> onOption(eventObj.name, eventObj.value)
-                                            is UpdateInstalledStickerSets -> onInstalledStickerSets(eventObj.isMasks, eventObj.stickerSetIds)
-                                            is UpdateTrendingStickerSets -> onTrendingStickerSets(eventObj.stickerSets)
-                                            is UpdateRecentStickers -> onRecentStickers(eventObj.isAttached, eventObj.stickerIds)
-                                            is UpdateFavoriteStickers -> onFavoriteStickers(eventObj.stickerIds)
-                                            is UpdateSavedAnimations -> onSavedAnimations(eventObj.animationIds)
-                                            is UpdateSelectedBackground -> onSelectedBackground(eventObj.forDarkTheme, eventObj.background)
-                                            is UpdateLanguagePackStrings -> onLanguagePackStrings(eventObj.localizationTarget, eventObj.languagePackId, eventObj.strings)
-                                            is UpdateConnectionState -> onConnectionState(eventObj.state)
-                                            is UpdateTermsOfService -> onTermsOfService(eventObj.termsOfServiceId, eventObj.termsOfService)
-                                            is UpdateNewInlineQuery -> onNewInlineQuery(eventObj.id, eventObj.senderUserId, eventObj.userLocation, eventObj.query, eventObj.offset)
-                                            is UpdateNewChosenInlineResult -> onNewChosenInlineResult(eventObj.senderUserId, eventObj.userLocation, eventObj.query, eventObj.resultId, eventObj.inlineMessageId)
-                                            is UpdateNewCallbackQuery -> handleNewCallbackQuery(eventObj.id, eventObj.senderUserId, eventObj.chatId, eventObj.messageId, eventObj.chatInstance, eventObj.payload)
-                                            is UpdateNewInlineCallbackQuery -> handleNewInlineCallbackQuery(eventObj.id, eventObj.senderUserId, eventObj.inlineMessageId, eventObj.chatInstance, eventObj.payload)
-                                            is UpdateNewShippingQuery -> onNewShippingQuery(eventObj.id, eventObj.senderUserId, eventObj.invoicePayload, eventObj.shippingAddress)
-                                            is UpdateNewPreCheckoutQuery -> onNewPreCheckoutQuery(eventObj.id, eventObj.senderUserId, eventObj.currency, eventObj.totalAmount, eventObj.invoicePayload, eventObj.shippingOptionId, eventObj.orderInfo)
-                                            is UpdateNewCustomEvent -> onNewCustomEvent(eventObj.event)
-                                            is UpdateNewCustomQuery -> onNewCustomQuery(eventObj.id, eventObj.data, eventObj.timeout)
-                                            is UpdatePoll -> onPoll(eventObj.poll)
+                                if (eventObj is Message) callback.onMessage?.invoke(eventObj)
+
+                                launch(Dispatchers.Default) {
+
+                                    runCatching {
+
+                                        if (eventObj is Error) {
+
+                                            callback.postError(TdException(eventObj))
+
+                                        } else {
+
+                                            callback.postResult(eventObj)
 
                                         }
 
                                     }.onFailure {
 
-                                        if (it is TdAbsHandler.Finish) return@launch
-
                                         defaultLog.error(it, "TdError - Sync")
 
                                     }
 
                                 }
 
-                            }
+                            } else {
+
+                                client.entities?.onUpdate(eventObj)
+
+                                client.fullInfos?.onUpdate(eventObj)
+
+                                client.metrics.update(eventObj)
 
+                                client.updates.offer(eventObj)
+
+                            }
                         }
                     }
+
+                    backoff = if (received || requested) 0.0 else (backoff * 2).coerceIn(MIN_BACKOFF, sharedReceiveTimeout)
+
+                    if (paused && !received) Thread.sleep(1L)
+
+                    val now = System.nanoTime()
+
+                    if (now - lastProbe >= LAG_PROBE_INTERVAL) {
+
+                        lastProbe = now
+
+                        events.launch { lag.record(System.nanoTime() - now) }
+
+                    }
+
                 }
 
             }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import nekox.TdEnv
+
+/**
+ * 命令路由: 由命令名与别名构建前缀树, 按 [TdEnv.FUN_PREFIX] + 命令名 + `@botname` 扫描一次消息文本,
+ * 命令名直接在树上匹配, 参数从原文截取.
+ */
+class TdCommandRouter {
+
+    class Command(val name: String, val handler: TdAbsHandler, val schema: TdArgSchema?)
+
+    class Parsed(val function: TdFunction, val command: Command?, val params: Array<String>, val originParams: Array<String>)
+
+    private class Node {
+
+        var keys = CharArray(0)
+        var children = arrayOfNulls<Node>(0)
+        var command: Command? = null
+
+        fun child(char: Char): Node? {
+
+            for (index in keys.indices) if (keys[index] == char) return children[index]
+
+            return null
+
+        }
+
+        fun getOrPut(char: Char): Node {
+
+            child(char)?.let { return it }
+
+            val node = Node()
+
+            keys = keys.copyOf(keys.size + 1).also { it[keys.size] = char }
+            children = children.copyOf(children.size + 1).also { it[children.size] = node }
+
+            return node
+
+        }
+
+    }
+
+    private val commands = HashMap<String, Command>()
+
+    @Volatile
+    private var root = Node()
+
+    /**
+     * 注册命令 [name] 及其别名 [aliases], 别名匹配时 [TdFunction.function] 为 [name].
+     */
+    @Synchronized
+    fun register(name: String, aliases: Array<out String>, handler: TdAbsHandler, schema: TdArgSchema?): Command {
+
+        val command = Command(name, handler, schema)
+
+        (arrayOf(name) + aliases).forEach {
+
+            check(it.isNotEmpty() && ' ' !in it && '@' !in it) { "无效的命令名: $it" }
+
+            check(commands.put(it, command) == null) { "命令名 $it 已被使用" }
+
+        }
+
+        val root = Node()
+
+        commands.forEach { (key, value) ->
+
+            var node = root
+
+            for (char in key) node = node.getOrPut(char)
+
+            node.command = value
+
+        }
+
+        this.root = root
+
+        return command
+
+    }
+
+    operator fun get(name: String): Command? = synchronized(this) { commands[name] }
+
+    /**
+     * 解析命令文本, 不以 [TdEnv.FUN_PREFIX] 开头时返回 null. [username] 为当前账号的用户名, 用于去除 `@botname` 后缀.
+     */
+    fun parse(text: String, username: String): Parsed? {
+
+        var start = -1
+
+        for (prefix in TdEnv.FUN_PREFIX) {
+
+            if (!text.startsWith(prefix)) continue
+
+            start = prefix.length
+
+            break
+
+        }
+
+        if (start == -1) return null
+
+        var tokenEnd = text.indexOf(' ', start)
+
+        if (tokenEnd == -1) tokenEnd = text.length
+
+        var end = tokenEnd
+
+        val suffix = username.length + 1
+
+        if (end - start >= suffix && text[end - suffix] == '@' && text.regionMatches(end - username.length, username, 0, username.length)) {
+
+            end -= suffix
+
+        }
+
+        var node: Node? = root
+
+        var index = start
+
+        while (node != null && index < end) node = node.child(text[index++])
+
+        val command = node?.command
+
+        val function = command?.name ?: text.substring(start, end)
+
+        val param = if (tokenEnd < text.length) text.substring(tokenEnd + 1) else ""
+
+        val params: Array<String>
+
+        val originParams: Array<String>
+
+        if (param.isBlank()) {
+
+            originParams = EMPTY
+            params = EMPTY
+
+        } else {
+
+            originParams = split(text, tokenEnd + 1, false)
+            params = split(text, tokenEnd + 1, true)
+
+        }
+
+        return Parsed(TdFunction(function, param, params.asList(), originParams.asList()), command, params, originParams)
+
+    }
+
+    companion object {
+
+        private val EMPTY = arrayOf<String>()
+
+        /**
+         * 等同于 `text.substring(from).split(' ')`, [collapse] 时等同于先 `replace("  ", " ")`:
+         * 连续 n 个空格算作 (n + 1) / 2 个分隔符.
+         */
+        private fun split(text: String, from: Int, collapse: Boolean): Array<String> {
+
+            val tokens = ArrayList<String>()
+
+            var begin = from
+
+            var index = from
+
+            while (index < text.length) {
+
+                if (text[index] != ' ') {
+
+                    index++
+
+                    continue
+
+                }
+
+                var run = index
+
+                while (run < text.length && text[run] == ' ') run++
+
+                var separators = run - index
+
+                if (collapse) separators = (separators + 1) / 2
+
+                tokens.add(text.substring(begin, index))
+
+                repeat(separators - 1) { tokens.add("") }
+
+                begin = run
+                index = run
+
+            }
+
+            tokens.add(text.substring(begin))
+
+            return tokens.toTypedArray()
+
+        }
+
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 写时复制的处理器列表.
+ *
+ * 每次修改都会替换整个快照, 遍历和分发只读取当前快照, 不加锁也不复制.
+ * 快照内按更新类型缓存只包含相关处理器的视图, 按类缓存 [find] 的结果.
+ */
+class TdHandlers : Iterable<TdAbsHandler> {
+
+    private class Snapshot(val handlers: Array<TdAbsHandler>) {
+
+        val views = arrayOfNulls<Array<TdAbsHandler>>(TdUpdates.size)
+
+        val byClass = ConcurrentHashMap<Class<*>, TdAbsHandler>()
+
+    }
+
+    @Volatile
+    private var snapshot = Snapshot(arrayOf())
+
+    val size get() = snapshot.handlers.size
+
+    fun isEmpty() = size == 0
+
+    @Synchronized
+    fun add(handler: TdAbsHandler) {
+
+        snapshot = Snapshot(snapshot.handlers + handler)
+
+    }
+
+    @Synchronized
+    fun remove(handler: TdAbsHandler): Boolean {
+
+        val handlers = snapshot.handlers
+
+        val index = handlers.indexOf(handler)
+
+        if (index == -1) return false
+
+        snapshot = Snapshot(handlers.filterIndexed { i, _ -> i != index }.toTypedArray())
+
+        return true
+
+    }
+
+    @Synchronized
+    fun clear() {
+
+        snapshot = Snapshot(arrayOf())
+
+    }
+
+    operator fun contains(handler: TdAbsHandler) = handler in snapshot.handlers
+
+    fun toArray() = snapshot.handlers
+
+    /**
+     * 需要接收下标为 [index] (见 [TdUpdates.indexOf]) 的更新的处理器, 保持注册顺序.
+     */
+    fun forUpdate(index: Int): Array<TdAbsHandler> {
+
+        val current = snapshot
+
+        return current.views[index] ?: current.handlers.filter {
+
+            TdUpdates.handledBy(it)[index]
+
+        }.toTypedArray().also {
+
+            current.views[index] = it
+
+        }
+
+    }
+
+    fun <T : TdAbsHandler> find(clazz: Class<T>): T? {
+
+        val current = snapshot
+
+        val handler = current.byClass[clazz] ?: current.handlers.find { clazz.isInstance(it) }?.also {
+
+            current.byClass[clazz] = it
+
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        return handler as T?
+
+    }
+
+    override fun iterator() = snapshot.handlers.iterator()
+
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import td.TdApi
+import td.TdApi.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * 客户端的运行指标.
+ *
+ * 计数全部使用 [LongAdder], 按线程分散到不同的单元, 记录时不加锁.
+ * 可以直接读取, 也可以用 [export] 导出为 Prometheus 文本格式.
+ */
+class TdMetrics internal constructor(private val client: TdClient, val enabled: Boolean) {
+
+    /**
+     * 以 2 的幂 (微秒) 为桶边界的直方图, 最后一个桶为 +Inf.
+     */
+    class Histogram {
+
+        private val buckets = Array(BOUNDS + 1) { LongAdder() }
+
+        private val total = LongAdder()
+
+        fun record(nanos: Long) {
+
+            val micros = nanos / 1000L
+
+            val index = if (micros <= 1L) 0 else (64 - java.lang.Long.numberOfLeadingZeros(micros - 1L)).coerceAtMost(BOUNDS)
+
+            buckets[index].increment()
+
+            total.add(nanos)
+
+        }
+
+        val count get() = buckets.fold(0L) { count, bucket -> count + bucket.sum() }
+
+        /**
+         * 纳秒.
+         */
+        val sum get() = total.sum()
+
+        /**
+         * [quantile] 分位所在桶的上界 (微秒), 落在 +Inf 桶时返回 Long.MAX_VALUE.
+         */
+        fun quantile(quantile: Double): Long {
+
+            val counts = buckets.map { it.sum() }
+
+            val target = counts.sum() * quantile
+
+            var seen = 0L
+
+            counts.forEachIndexed { index, count ->
+
+                seen += count
+
+                if (count > 0L && seen >= target) return if (index == BOUNDS) Long.MAX_VALUE else 1L shl index
+
+            }
+
+            return 0L
+
+        }
+
+        internal fun export(out: Appendable, name: String, labels: String) {
+
+            var seen = 0L
+
+            buckets.forEachIndexed { index, bucket ->
+
+                seen += bucket.sum()
+
+                val le = if (index == BOUNDS) "+Inf" else "${(1L shl index) / 1000_000.0}"
+
+                out.append("${name}_bucket{$labels,le=\"$le\"} $seen\n")
+
+            }
+
+            out.append("${name}_sum{$labels} ${sum / 1000_000_000.0}\n")
+            out.append("${name}_count{$labels} $seen\n")
+
+        }
+
+    }
+
+    private val requests = ConcurrentHashMap<Class<*>, Histogram>()
+
+    private val requestErrors = ConcurrentHashMap<Class<*>, LongAdder>()
+
+    private val updates = Array(TdUpdates.size + 1) { LongAdder() }
+
+    private val updateNames = arrayOfNulls<String>(TdUpdates.size + 1)
+
+    private val handlers = ConcurrentHashMap<Class<*>, Histogram>()
+
+    private val expiredCounter = LongAdder()
+
+    val pendingCallbacks get() = client.pendingRequests
+
+    /**
+     * 因超时被移除的请求数.
+     */
+    val expiredRequests get() = expiredCounter.sum()
+
+    fun requestLatency(function: Class<out TdApi.Function>): Histogram? = requests[function]
+
+    fun requestErrors(function: Class<out TdApi.Function>) = requestErrors[function]?.sum() ?: 0L
+
+    fun handlerTime(handler: Class<out TdAbsHandler>): Histogram? = handlers[handler]
+
+    /**
+     * 按更新类型统计的接收数量, 包含被丢弃与合并的更新.
+     */
+    fun updateCounts(): Map<String, Long> {
+
+        val counts = HashMap<String, Long>()
+
+        updates.forEachIndexed { index, counter ->
+
+            val name = updateNames[index] ?: return@forEachIndexed
+
+            counts[name] = counter.sum()
+
+        }
+
+        return counts
+
+    }
+
+    internal fun request(callback: TdCallback<*>, result: Object) {
+
+        val function = callback.function ?: return
+
+        if (!enabled) return
+
+        histogram(requests, function).record(System.nanoTime() - callback.sentAt)
+
+        if (result is Error) {
+
+            (requestErrors[function] ?: requestErrors.computeIfAbsent(function) { LongAdder() }).increment()
+
+        }
+
+    }
+
+    internal fun expired() = expiredCounter.increment()
+
+    internal fun update(update: Object) {
+
+        if (!enabled) return
+
+        val index = TdUpdates.indexOf(update.constructor).let { if (it == -1) TdUpdates.size else it }
+
+        if (updateNames[index] == null) updateNames[index] = if (index == TdUpdates.size) "Other" else update.javaClass.simpleName
+
+        updates[index].increment()
+
+    }
+
+    internal fun handled(handler: TdAbsHandler, nanos: Long) {
+
+        if (!enabled) return
+
+        histogram(handlers, handler.javaClass).record(nanos)
+
+    }
+
+    private fun histogram(map: ConcurrentHashMap<Class<*>, Histogram>, clazz: Class<*>) = map[clazz] ?: map.computeIfAbsent(clazz) { Histogram() }
+
+    private val label get() = "client=\"${client.clientId}\""
+
+    /**
+     * 以 Prometheus 文本格式导出本客户端的指标.
+     */
+    fun export(out: Appendable = StringBuilder()) = export(out, listOf(client), listOf())
+
+    companion object {
+
+        /**
+         * 直方图的有限桶数量, 最大边界为 2^(BOUNDS - 1) 微秒 (约 8 秒).
+         */
+        const val BOUNDS = 24
+
+        /**
+         * 以 Prometheus 文本格式导出所有客户端与事件循环的指标.
+         */
+        fun exportAll() = export(StringBuilder(), TdClient.clients, TdClient.loops.asList()).toString()
+
+        /**
+         * 同名指标必须连续输出, 所以按指标逐个遍历客户端.
+         */
+        private fun export(out: Appendable, clients: List<TdClient>, loops: List<TdClient.Companion.EventLoop>): Appendable {
+
+            val metrics = clients.map { it.metrics }
+
+            out.append("# TYPE nekox_pending_callbacks gauge\n")
+
+            metrics.forEach { out.append("nekox_pending_callbacks{${it.label}} ${it.pendingCallbacks}\n") }
+
+            out.append("# TYPE nekox_request_seconds histogram\n")
+
+            metrics.forEach { metric ->
+
+                metric.requests.forEach { (function, histogram) ->
+
+                    histogram.export(out, "nekox_request_seconds", "${metric.label},function=\"${function.simpleName}\"")
+
+                }
+
+            }
+
+            out.append("# TYPE nekox_requests_expired_total counter\n")
+
+            metrics.forEach { out.append("nekox_requests_expired_total{${it.label}} ${it.expiredRequests}\n") }
+
+            out.append("# TYPE nekox_request_errors_total counter\n")
+
+            metrics.forEach { metric ->
+
+                metric.requestErrors.forEach { (function, errors) ->
+
+                    out.append("nekox_request_errors_total{${metric.label},function=\"${function.simpleName}\"} ${errors.sum()}\n")
+
+                }
+
+            }
+
+            out.append("# TYPE nekox_updates_total counter\n")
+
+            metrics.forEach { metric ->
+
+                metric.updateCounts().forEach { (type, count) ->
+
+                    out.append("nekox_updates_total{${metric.label},type=\"$type\"} $count\n")
+
+                }
+
+            }
+
+            out.append("# TYPE nekox_handler_seconds histogram\n")
+
+            metrics.forEach { metric ->
+
+                metric.handlers.forEach { (handler, histogram) ->
+
+                    histogram.export(out, "nekox_handler_seconds", "${metric.label},handler=\"${handler.name}\"")
+
+                }
+
+            }
+
+            out.append("# TYPE nekox_update_queue_depth gauge\n")
+
+            metrics.forEach { out.append("nekox_update_queue_depth{${it.label}} ${it.client.updates.depth}\n") }
+
+            out.append("# TYPE nekox_updates_dropped_total counter\n")
+
+            metrics.forEach { out.append("nekox_updates_dropped_total{${it.label}} ${it.client.updates.dropped}\n") }
+
+            out.append("# TYPE nekox_updates_coalesced_total counter\n")
+
+            metrics.forEach { out.append("nekox_updates_coalesced_total{${it.label}} ${it.client.updates.coalesced}\n") }
+
+            out.append("# TYPE nekox_updates_overflowed_total counter\n")
+
+            metrics.forEach { out.append("nekox_updates_overflowed_total{${it.label}} ${it.client.updates.overflowed}\n") }
+
+            if (loops.isNotEmpty()) {
+
+                out.append("# TYPE nekox_event_loop_lag_seconds histogram\n")
+
+                loops.forEach { it.lag.export(out, "nekox_event_loop_lag_seconds", "loop=\"${it.index}\"") }
+
+            }
+
+            return out
+
+        }
+
+    }
+
+}
@@ -18,7 +18,10 @@ package nekox.core.client
 
 import cn.hutool.core.util.RuntimeUtil
 import nekox.TdEnv
+import nekox.core.utils.PersistStorage
+import nekox.core.utils.WalStorage
 import td.TdApi.TdlibParameters
+import java.io.File
 
 class TdOptions {
 
@@ -44,6 +47,28 @@ class TdOptions {
     var enableStorageOptimizer = false
     var ignoreFileNames = false
 
+    var maxEvents = 1000
+    var dispatchParallelism = 0
+    var updateQueueCapacity = 10000
+    var overloadPolicy = TdUpdateQueue.Policy.BLOCK
+    var updateQueueBlockTimeout = 1000L
+    var metrics = true
+    var requestTimeout = 0L
+    var sendTimeout = 30 * 60 * 1000L
+    var callbackTableSize = 8192
+    var rateLimit = false
+    var globalRate = 30.0
+    var chatRate = 1.0
+    var groupRate = 20 / 60.0
+    var floodRetries = 3
+    var retryPolicy: TdRetryPolicy? = TdRetryPolicy()
+    var entityCache = false
+    var fullInfoCacheSize = 0
+    var fullInfoTtl = 5 * 60 * 1000L
+    var persistTimeout = 0L
+    var persistFlushInterval = 5000L
+    var storage: (File) -> PersistStorage = { WalStorage(it) }
+
     fun build(): TdlibParameters {
 
         return TdlibParameters(useTestDc, databaseDirectory, filesDirectory, useFileDatabase, useChatInfoDatabase, useMessageDatabase, useSecretChats, apiId, apiHash, systemLanguageCode, deviceModel, systemVersion, applicationVersion, enableStorageOptimizer, ignoreFileNames)
@@ -124,4 +149,129 @@ class TdOptions {
         this.ignoreFileNames = ignoreFileNames
         return this
     }
-}
\ No newline at end of file
+
+    fun maxEvents(maxEvents: Int): TdOptions {
+        check(maxEvents > 0) { "maxEvents 必须大于 0" }
+        this.maxEvents = maxEvents
+        return this
+    }
+
+    /**
+     * 按会话保序, 跨会话在 [parallelism] 个线程上并行分发更新. 为 0 时使用事件循环的单线程分发.
+     */
+    fun orderedDispatch(parallelism: Int): TdOptions {
+        this.dispatchParallelism = parallelism
+        return this
+    }
+
+    /**
+     * 同时处理中的更新上限, 以及超过上限时的处理方式, 见 [TdUpdateQueue.Policy].
+     */
+    fun updateQueue(capacity: Int, policy: TdUpdateQueue.Policy = TdUpdateQueue.Policy.BLOCK, blockTimeout: Long = 1000L): TdOptions {
+        check(capacity > 0) { "capacity 必须大于 0" }
+        this.updateQueueCapacity = capacity
+        this.overloadPolicy = policy
+        this.updateQueueBlockTimeout = blockTimeout
+        return this
+    }
+
+    /**
+     * 是否记录 [TdMetrics] 中的请求耗时, 更新数量与处理器耗时.
+     */
+    fun metrics(enabled: Boolean): TdOptions {
+        this.metrics = enabled
+        return this
+    }
+
+    /**
+     * 请求超过 [timeout] 毫秒未响应时以 TdException 结束并移除回调, 为 0 (默认) 时不限制.
+     * 文件的下载与上传, 以及消息发送完成 (UpdateMessageSendSucceeded) 的等待不受限制, 后者见 [sendTimeout].
+     */
+    fun requestTimeout(timeout: Long): TdOptions {
+        check(timeout >= 0) { "timeout 不能小于 0" }
+        this.requestTimeout = timeout
+        return this
+    }
+
+    /**
+     * 等待 UpdateMessageSendSucceeded 超过 [timeout] 毫秒 (默认 30 分钟, 包括上传文件的时间) 时以 TdException 结束, 为 0 时不限制.
+     */
+    fun sendTimeout(timeout: Long): TdOptions {
+        check(timeout >= 0) { "timeout 不能小于 0" }
+        this.sendTimeout = timeout
+        return this
+    }
+
+    /**
+     * 请求回调表的大小 (2 的幂), 应不小于同时在途的请求数, 超出的部分退回到 ConcurrentHashMap.
+     */
+    fun callbackTable(size: Int): TdOptions {
+        check(size > 0 && size and (size - 1) == 0) { "size 必须是 2 的幂" }
+        this.callbackTableSize = size
+        return this
+    }
+
+    /**
+     * 启用 [TdSendScheduler], 按每秒 [global] 条, 私聊每秒 [perChat] 条, 群组每秒 [perGroup] 条限制发送,
+     * 遇到 429 时最多重试 [retries] 次.
+     */
+    fun rateLimit(global: Double = 30.0, perChat: Double = 1.0, perGroup: Double = 20 / 60.0, retries: Int = 3): TdOptions {
+        check(global > 0 && perChat > 0 && perGroup > 0) { "速率必须大于 0" }
+        check(retries >= 0) { "retries 不能小于 0" }
+        this.rateLimit = true
+        this.globalRate = global
+        this.chatRate = perChat
+        this.groupRate = perGroup
+        this.floodRetries = retries
+        return this
+    }
+
+    /**
+     * 请求失败时的重试策略, 见 [TdRetryPolicy]. 为 null 时不重试.
+     */
+    fun retryPolicy(policy: TdRetryPolicy?): TdOptions {
+        this.retryPolicy = policy
+        return this
+    }
+
+    /**
+     * 是否由更新维护用户, 会话等实体的缓存 (见 [nekox.core.EntityStore]), GetUser, GetChat 等请求优先由缓存应答.
+     */
+    fun entityCache(enabled: Boolean): TdOptions {
+        this.entityCache = enabled
+        return this
+    }
+
+    /**
+     * 缓存最多 [maxSize] 个用户与群组的完整信息, 每项 [ttl] 毫秒后过期, 见 [nekox.core.FullInfoStore]. 为 0 时不缓存.
+     */
+    fun fullInfoCache(maxSize: Int, ttl: Long = 5 * 60 * 1000L): TdOptions {
+        check(maxSize >= 0) { "maxSize 不能小于 0" }
+        check(ttl > 0) { "ttl 必须大于 0" }
+        this.fullInfoCacheSize = maxSize
+        this.fullInfoTtl = ttl
+        return this
+    }
+
+    /**
+     * [TdBot] 会话状态的默认超时 [timeout] 毫秒 (为 0 时不超时), 以及有改动时写入磁盘的间隔 [flushInterval] 毫秒, 见 [TdPersistStore].
+     */
+    fun persists(timeout: Long = 0L, flushInterval: Long = 5000L): TdOptions {
+        check(timeout >= 0) { "timeout 不能小于 0" }
+        check(flushInterval > 0) { "flushInterval 必须大于 0" }
+        this.persistTimeout = timeout
+        this.persistFlushInterval = flushInterval
+        return this
+    }
+
+    /**
+     * 持久化数据的存储引擎, 参数为账号的数据目录. 默认为 [WalStorage], 也可使用 [nekox.core.utils.CsvStorage].
+     *
+     * 默认的 WalStorage 每秒落盘一次, 进程崩溃或断电时会丢失最近约 1 秒的写入.
+     * 需要每次写入都落盘时使用 `storage { WalStorage(it, syncInterval = 0) }`.
+     */
+    fun storage(factory: (File) -> PersistStorage): TdOptions {
+        this.storage = factory
+        return this
+    }
+}
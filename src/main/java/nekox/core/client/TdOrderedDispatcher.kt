@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import td.TdApi.*
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 按会话保序, 跨会话并行的更新分发.
+ *
+ * 更新按 [keyOf] 哈希到固定数量的通道, 每个通道由一个协程顺序处理,
+ * 所以同一会话 (或用户) 的更新保持顺序, 不同会话的更新在 [parallelism] 个线程上并行.
+ * [isInternal] 的更新不经过通道, 直接在事件循环上分发.
+ */
+class TdOrderedDispatcher(val parallelism: Int, lanes: Int = parallelism * 4) {
+
+    init {
+
+        check(parallelism > 0) { "parallelism 必须大于 0" }
+
+    }
+
+    private val pool = Executors.newFixedThreadPool(parallelism) {
+
+        Thread(it, "Tooko Ordered Task #${threadCount.getAndIncrement()}")
+
+    }.asCoroutineDispatcher()
+
+    private val scope = CoroutineScope(SupervisorJob() + pool)
+
+    private val channels = Array(lanes) { Channel<suspend () -> Unit>(Channel.UNLIMITED) }
+
+    private val jobs = channels.map { channel ->
+
+        scope.launch {
+
+            for (task in channel) task()
+
+        }
+
+    }
+
+    fun dispatch(update: Object, task: suspend () -> Unit) = dispatch(keyOf(update), task)
+
+    fun dispatch(key: Long, task: suspend () -> Unit) {
+
+        val hash = (key xor (key ushr 32)).toInt()
+
+        channels[(hash and Int.MAX_VALUE) % channels.size].offer(task)
+
+    }
+
+    fun close() {
+
+        channels.forEach { it.close() }
+
+        GlobalScope.launch {
+
+            jobs.joinAll()
+
+            pool.close()
+
+        }
+
+    }
+
+    companion object {
+
+        private val threadCount = AtomicInteger()
+
+        /**
+         * 客户端自身需要处理的更新: 登录状态, 以及完成 sync(SendMessage) 的发送结果.
+         * 它们不进入通道, 否则会排在正在等待它们的处理器之后而永远无法处理.
+         */
+        fun isInternal(update: Object) = update is UpdateAuthorizationState || update is UpdateMessageSendSucceeded || update is UpdateMessageSendFailed
+
+        /**
+         * 会话类更新取 chatId, 用户类更新取 userId (私聊的 chatId 与 userId 相同), 其余更新归入 0.
+         */
+        fun keyOf(update: Object): Long = when (update) {
+
+            is UpdateNewMessage -> update.message.chatId
+            is UpdateMessageSendAcknowledged -> update.chatId
+            is UpdateMessageSendSucceeded -> update.message.chatId
+            is UpdateMessageSendFailed -> update.message.chatId
+            is UpdateMessageContent -> update.chatId
+            is UpdateMessageEdited -> update.chatId
+            is UpdateMessageViews -> update.chatId
+            is UpdateMessageContentOpened -> update.chatId
+            is UpdateMessageMentionRead -> update.chatId
+            is UpdateNewChat -> update.chat.id
+            is UpdateChatTitle -> update.chatId
+            is UpdateChatPhoto -> update.chatId
+            is UpdateChatPermissions -> update.chatId
+            is UpdateChatLastMessage -> update.chatId
+            is UpdateChatOrder -> update.chatId
+            is UpdateChatIsPinned -> update.chatId
+            is UpdateChatIsMarkedAsUnread -> update.chatId
+            is UpdateChatIsSponsored -> update.chatId
+            is UpdateChatDefaultDisableNotification -> update.chatId
+            is UpdateChatReadInbox -> update.chatId
+            is UpdateChatReadOutbox -> update.chatId
+            is UpdateChatUnreadMentionCount -> update.chatId
+            is UpdateChatNotificationSettings -> update.chatId
+            is UpdateChatPinnedMessage -> update.chatId
+            is UpdateChatReplyMarkup -> update.chatId
+            is UpdateChatDraftMessage -> update.chatId
+            is UpdateChatOnlineMemberCount -> update.chatId
+            is UpdateNotificationGroup -> update.chatId
+            is UpdateDeleteMessages -> update.chatId
+            is UpdateUserChatAction -> update.chatId
+            is UpdateUserStatus -> update.userId.toLong()
+            is UpdateUser -> update.user.id.toLong()
+            is UpdateUserFullInfo -> update.userId.toLong()
+            is UpdateNewInlineQuery -> update.senderUserId.toLong()
+            is UpdateNewChosenInlineResult -> update.senderUserId.toLong()
+            is UpdateNewCallbackQuery -> update.chatId
+            is UpdateNewInlineCallbackQuery -> update.senderUserId.toLong()
+            is UpdateNewShippingQuery -> update.senderUserId.toLong()
+            is UpdateNewPreCheckoutQuery -> update.senderUserId.toLong()
+
+            else -> 0L
+
+        }
+
+    }
+
+}
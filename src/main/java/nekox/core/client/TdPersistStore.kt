@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import nekox.core.LongObjectMap
+import nekox.core.defaultLog
+import nekox.core.utils.readDataMapFrom
+import java.util.*
+
+/**
+ * [TdBot] 的会话状态 (persist) 存储.
+ *
+ * 按 userId 分到 [shards] 个分段, 每段一把锁, 同一用户的读写与状态转换 (如 [remove] 与超时) 是原子的.
+ * 设置了超时的状态到期后移除并调用 [TdBotAbsHandler.onPersistTimeout].
+ *
+ * 有改动的用户每 [TdOptions.persistFlushInterval] 毫秒写入 [TdClient.storage] 的 user_persists 表, 关闭时写入全部用户.
+ */
+class TdPersistStore(private val bot: TdBot, shards: Int = 16) {
+
+    init {
+
+        check(shards > 0 && shards and (shards - 1) == 0) { "shards 必须是 2 的幂" }
+
+    }
+
+    private class Entry(val persist: TdPerstst, val timeout: TdTimingWheel.Timeout?)
+
+    private class Shard {
+
+        val map = LongObjectMap<Entry>()
+
+        val dirty = HashSet<Int>()
+
+    }
+
+    private val shards = Array(shards) { Shard() }
+
+    private val shift = 32 - Integer.numberOfTrailingZeros(shards)
+
+    @Volatile
+    private var flushTask: TdTimingWheel.Timeout? = null
+
+    @Volatile
+    private var loaded = false
+
+    @Volatile
+    private var closed = false
+
+    private fun shard(userId: Int) = if (shards.size == 1) shards[0] else shards[LongObjectMap.mix(userId.toLong()) ushr shift]
+
+    val size get() = shards.sumBy { synchronized(it) { it.map.size } }
+
+    operator fun get(userId: Int): TdPerstst? = shard(userId).let { synchronized(it) { it.map[userId.toLong()]?.persist } }
+
+    fun containsKey(userId: Int) = get(userId) != null
+
+    /**
+     * 写入状态, 替换并返回该用户原有的状态.
+     */
+    fun put(persist: TdPerstst): TdPerstst? {
+
+        val shard = shard(persist.userId)
+
+        synchronized(shard) {
+
+            val timeout = if (persist.timeout > 0L) {
+
+                val delay = persist.createAt * 1000L + persist.timeout - System.currentTimeMillis()
+
+                TdClient.deadlines.schedule(delay.coerceAtLeast(0L)) { expire(persist) }
+
+            } else null
+
+            val old = shard.map.put(persist.userId.toLong(), Entry(persist, timeout))
+
+            old?.timeout?.cancel()
+
+            shard.dirty.add(persist.userId)
+
+            return old?.persist
+
+        }
+
+    }
+
+    operator fun set(userId: Int, persist: TdPerstst) {
+
+        check(userId == persist.userId) { "userId 与状态不符" }
+
+        put(persist)
+
+    }
+
+    fun remove(userId: Int): TdPerstst? {
+
+        val shard = shard(userId)
+
+        synchronized(shard) {
+
+            val entry = shard.map.remove(userId.toLong()) ?: return null
+
+            entry.timeout?.cancel()
+
+            shard.dirty.add(userId)
+
+            return entry.persist
+
+        }
+
+    }
+
+    /**
+     * 仅当该用户当前的状态是 [persist] 时移除, 同时处理的消息与超时中只有一个能完成转换.
+     */
+    fun remove(userId: Int, persist: TdPerstst): Boolean {
+
+        val shard = shard(userId)
+
+        synchronized(shard) {
+
+            val entry = shard.map[userId.toLong()]
+
+            if (entry?.persist !== persist) return false
+
+            shard.map.remove(userId.toLong())
+
+            entry.timeout?.cancel()
+
+            shard.dirty.add(userId)
+
+            return true
+
+        }
+
+    }
+
+    /**
+     * 处理器在 [TdBotAbsHandler.onPersistStore] 中写出的数据有变化时调用, 使下次写入包含该用户.
+     */
+    fun markDirty(userId: Int) {
+
+        val shard = shard(userId)
+
+        synchronized(shard) { shard.dirty.add(userId) }
+
+    }
+
+    /**
+     * 逐段遍历, 遍历某一段时持有该段的锁.
+     */
+    fun forEach(action: (Int, TdPerstst) -> Unit) = shards.forEach { shard ->
+
+        synchronized(shard) { shard.map.forEach { userId, entry -> action(userId.toInt(), entry.persist) } }
+
+    }
+
+    private fun expire(persist: TdPerstst) {
+
+        if (!remove(persist.userId, persist)) return
+
+        val handler = bot.persistHandlers[persist.persistId] ?: return
+
+        GlobalScope.launch(Dispatchers.Default) {
+
+            try {
+
+                handler.onPersistTimeout(persist.userId, persist.subId)
+
+                handler.onPersistRemoveOrCancel(persist.userId, persist.subId)
+
+                handler.onSendTimeoutedMessage(persist.userId)
+
+            } catch (ignored: TdAbsHandler.Finish) {
+            } catch (e: Exception) {
+
+                defaultLog.error(e, "TdError - Persist Timeout")
+
+            }
+
+        }
+
+    }
+
+    /**
+     * 读取 user_persists 表 (旧版的 user_persists.csv 会先导入), 并开始定时写入.
+     */
+    fun load() {
+
+        bot.readDataMapFrom(TABLE).forEach { (key, values) ->
+
+            val row = listOf(key) + values
+
+            // 旧版的标志位写作 true / false, 并在 createAt 之后多写了一个 persistId.
+
+            val legacy = row[3] == "true" || row[3] == "false"
+
+            val persist = TdPerstst(
+                    userId = row[0].toInt(),
+                    persistId = row[1].toInt(),
+                    subId = row[2].toInt(),
+                    allowFuction = row[3] == "1" || row[3] == "true",
+                    allowCancel = row[4] == "1" || row[4] == "true",
+                    createAt = row[5].toInt(),
+                    timeout = if (legacy) 0L else row[6].toLong()
+            )
+
+            val handler = bot.persistHandlers[persist.persistId] ?: error("Invalid Persist ID #${persist.persistId}")
+
+            runCatching {
+
+                handler.onPersistReStore(persist.userId, persist.subId, row.drop(7))
+
+            }.onFailure {
+
+                markDirty(persist.userId)
+
+                return@forEach
+
+            }
+
+            put(persist)
+
+            // 刚读出的状态不必再写回, 旧版格式的除外.
+
+            if (!legacy) shard(persist.userId).let { synchronized(it) { it.dirty.remove(persist.userId) } }
+
+        }
+
+        loaded = true
+
+        scheduleFlush()
+
+    }
+
+    private fun scheduleFlush() {
+
+        if (closed) return
+
+        flushTask = TdClient.deadlines.schedule(bot.options.persistFlushInterval) {
+
+            GlobalScope.launch(Dispatchers.IO) {
+
+                flush(false)
+
+                scheduleFlush()
+
+            }
+
+        }
+
+    }
+
+    /**
+     * 写入有改动的用户, [all] 时写入全部用户.
+     *
+     * 分段的锁只用于取出待写入的状态, [TdBotAbsHandler.onPersistStore] 在锁外调用;
+     * 写入之间仍然互斥, 以免较早取出的状态覆盖较新的.
+     */
+    @Synchronized
+    fun flush(all: Boolean) {
+
+        val pending = LinkedList<Pair<Int, TdPerstst?>>()
+
+        shards.forEach { shard ->
+
+            synchronized(shard) {
+
+                if (all) {
+
+                    shard.map.forEach { userId, entry -> pending.add(userId.toInt() to entry.persist) }
+
+                    shard.dirty.forEach { userId -> if (shard.map[userId.toLong()] == null) pending.add(userId to null) }
+
+                } else shard.dirty.forEach { userId -> pending.add(userId to shard.map[userId.toLong()]?.persist) }
+
+                shard.dirty.clear()
+
+            }
+
+        }
+
+        val changed = HashMap<String, List<String>>()
+
+        val removed = LinkedList<String>()
+
+        var failed = false
+
+        pending.forEach { (userId, persist) ->
+
+            if (persist == null) removed.add("$userId") else {
+
+                val row = row(persist)
+
+                if (row != null) changed["$userId"] = row else {
+
+                    // 保留表中原有的数据, 下次写入时重试.
+
+                    markDirty(userId)
+
+                    failed = true
+
+                }
+
+            }
+
+        }
+
+        if (!all && changed.isEmpty() && removed.isEmpty()) return
+
+        try {
+
+            // 有用户写出失败时不能替换整张表, 否则会丢掉这些用户原有的数据.
+
+            if (all && !failed) bot.storage.replace(TABLE, changed) else bot.storage.update(TABLE, changed, removed)
+
+        } catch (e: Exception) {
+
+            pending.forEach { (userId, _) -> markDirty(userId) }
+
+            defaultLog.error(e, "TdError - Persist Flush")
+
+        }
+
+    }
+
+    private fun row(persist: TdPerstst): List<String>? {
+
+        val data = LinkedList<String>()
+
+        data.add("${persist.persistId}")
+        data.add("${persist.subId}")
+        data.add(if (persist.allowFuction) "1" else "0")
+        data.add(if (persist.allowCancel) "1" else "0")
+        data.add("${persist.createAt}")
+        data.add("${persist.timeout}")
+
+        return try {
+
+            bot.persistHandlers[persist.persistId]?.onPersistStore(persist.userId, persist.subId, data)
+
+            data
+
+        } catch (e: Exception) {
+
+            defaultLog.error(e, "TdError - Persist Store #${persist.userId}")
+
+            null
+
+        }
+
+    }
+
+    /**
+     * 停止定时写入并写入全部分段.
+     */
+    fun close() {
+
+        closed = true
+
+        flushTask?.cancel()
+
+        if (loaded) flush(true)
+
+    }
+
+    companion object {
+
+        private const val TABLE = "user_persists"
+
+    }
+
+}
@@ -23,6 +23,7 @@ data class TdPerstst(
         val subId: Int,
         val allowFuction: Boolean,
         val allowCancel: Boolean,
-        val createAt: Int = (System.currentTimeMillis() / 1000).toInt()
+        val createAt: Int = (System.currentTimeMillis() / 1000).toInt(),
+        val timeout: Long = 0L
 
 )
\ No newline at end of file
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import td.TdApi
+import td.TdApi.*
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * 请求失败后的重试策略.
+ *
+ * 只重试 [functions] 中的请求 (默认为只读的 GetChat, GetUser, GetMessage), 按错误分类:
+ * 429 / FLOOD_WAIT 等待服务器给出的秒数, 5xx 与网络超时按指数退避加随机抖动, 其余错误直接返回.
+ *
+ * 重试次数受预算限制: 每个请求存入 [budgetRatio] 次重试, 另外每秒补充 [minRetriesPerSecond] 次,
+ * 预算用完时不再重试, 避免故障时重试放大请求量.
+ */
+class TdRetryPolicy(
+        val maxAttempts: Int = 3,
+        val baseDelay: Long = 200L,
+        val maxDelay: Long = 10 * 1000L,
+        val maxFloodWait: Long = 30 * 1000L,
+        val budgetRatio: Double = 0.2,
+        val minRetriesPerSecond: Double = 10.0
+) {
+
+    init {
+
+        check(maxAttempts > 0) { "maxAttempts 必须大于 0" }
+        check(baseDelay > 0 && maxDelay >= baseDelay) { "退避时间不正确" }
+
+    }
+
+    enum class Kind {
+
+        /**
+         * 限流, 按服务器给出的时间等待.
+         */
+        FLOOD,
+
+        /**
+         * 服务器内部错误或网络超时, 按指数退避.
+         */
+        TRANSIENT,
+
+        FATAL
+
+    }
+
+    val functions = hashSetOf<Class<out TdApi.Function>>(GetChat::class.java, GetUser::class.java, GetMessage::class.java)
+
+    /**
+     * 同时重试 [classes] 类型的请求, 只应加入幂等的请求.
+     */
+    fun retryOn(vararg classes: Class<out TdApi.Function>): TdRetryPolicy {
+
+        functions.addAll(classes)
+
+        return this
+
+    }
+
+    private var budget = minRetriesPerSecond
+
+    private var budgetUpdated = System.nanoTime()
+
+    private val retriedCounter = LongAdder()
+    private val exhaustedCounter = LongAdder()
+
+    val retried get() = retriedCounter.sum()
+
+    /**
+     * 因预算用完而放弃的重试次数.
+     */
+    val exhausted get() = exhaustedCounter.sum()
+
+    fun appliesTo(function: TdApi.Function) = function.javaClass in functions
+
+    fun classify(error: Error): Kind = when {
+
+        error.code == 429 || error.code == 420 || FLOOD_WAIT.containsMatchIn(error.message) -> Kind.FLOOD
+
+        error.code >= 500 || TIMEOUT.containsMatchIn(error.message) -> Kind.TRANSIENT
+
+        else -> Kind.FATAL
+
+    }
+
+    /**
+     * 第 [attempt] 次 (从 1 开始) 失败后下次重试前等待的毫秒数, 不重试时返回 -1.
+     */
+    fun nextDelay(attempt: Int, error: Error): Long {
+
+        if (attempt >= maxAttempts) return -1L
+
+        val delay = when (classify(error)) {
+
+            Kind.FLOOD -> {
+
+                val seconds = FLOOD_WAIT.find(error.message)?.groupValues?.drop(1)?.firstOrNull { it.isNotEmpty() }?.toLong() ?: 1L
+
+                (seconds * 1000L).takeIf { it <= maxFloodWait } ?: return -1L
+
+            }
+
+            // 完全随机抖动, 避免同时失败的请求同时重试.
+
+            Kind.TRANSIENT -> ThreadLocalRandom.current().nextLong(minOf(maxDelay, baseDelay shl (attempt - 1).coerceAtMost(30)) + 1)
+
+            Kind.FATAL -> return -1L
+
+        }
+
+        if (!withdraw()) {
+
+            exhaustedCounter.increment()
+
+            return -1L
+
+        }
+
+        retriedCounter.increment()
+
+        return delay
+
+    }
+
+    @Synchronized
+    internal fun deposit() {
+
+        budget = minOf(budgetCap, budget + budgetRatio)
+
+    }
+
+    @Synchronized
+    private fun withdraw(): Boolean {
+
+        val now = System.nanoTime()
+
+        budget = minOf(budgetCap, budget + (now - budgetUpdated) * minRetriesPerSecond / 1000_000_000L)
+
+        budgetUpdated = now
+
+        if (budget < 1.0) return false
+
+        budget -= 1.0
+
+        return true
+
+    }
+
+    private val budgetCap get() = maxOf(minRetriesPerSecond, 100.0)
+
+    companion object {
+
+        private val FLOOD_WAIT = Regex("FLOOD_WAIT_(\\d+)|retry after (\\d+)")
+
+        private val TIMEOUT = Regex("(?i)timeout|timed out|network")
+
+    }
+
+}
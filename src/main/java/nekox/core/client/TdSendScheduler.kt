@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import kotlinx.coroutines.asContextElement
+import nekox.core.defaultLog
+import td.TdApi
+import td.TdApi.*
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * 发送消息的限流调度.
+ *
+ * 发送 / 编辑消息与回答查询的请求先进入队列, 由调度线程按全局与每个会话的令牌桶发出,
+ * 私聊默认每秒 1 条, 群组每分钟 20 条, 全局每秒 30 条. 其他请求不经过调度.
+ *
+ * 队列按 [Lane] 分为三道, 前一道有可发送的请求时不会发送后一道的, 同一道内各会话轮流发送.
+ * 请求返回 429 (Too Many Requests: retry after N) 时暂停该会话 N 秒后重新发送, 最多重试 [maxRetries] 次.
+ */
+class TdSendScheduler internal constructor(
+        private val client: TdClient,
+        val globalRate: Double,
+        val chatRate: Double,
+        val groupRate: Double,
+        val maxRetries: Int
+) {
+
+    enum class Lane {
+
+        /**
+         * 回答回调查询, 内联查询等, 总是最先发送.
+         */
+        ANSWER,
+
+        NORMAL,
+
+        /**
+         * 群发等批量请求, 只在没有其他请求可发送时发送.
+         */
+        BULK
+
+    }
+
+    private class Bucket(private val rate: Double, private val burst: Double) {
+
+        private var tokens = burst
+
+        private var updated = System.nanoTime()
+
+        private var pausedUntil = 0L
+
+        private fun refill(now: Long) {
+
+            if (now > updated) tokens = minOf(burst, tokens + (now - updated) * rate / 1000_000_000L)
+
+            updated = now
+
+        }
+
+        /**
+         * 距离下一个令牌的纳秒数, 为 0 时可以立即发送.
+         */
+        fun delay(now: Long): Long {
+
+            if (now < pausedUntil) return pausedUntil - now
+
+            refill(now)
+
+            return if (tokens >= 1.0) 0L else ((1.0 - tokens) * 1000_000_000L / rate).toLong() + 1L
+
+        }
+
+        fun take() {
+
+            tokens -= 1.0
+
+        }
+
+        fun pause(until: Long) {
+
+            if (until <= pausedUntil) return
+
+            // 暂停结束时恰好可以发送一条.
+
+            pausedUntil = until
+
+            tokens = 1.0
+
+            updated = until
+
+        }
+
+        fun isFull(now: Long) = delay(now) == 0L && tokens >= burst
+
+    }
+
+    private class Chat(val id: Long, val bucket: Bucket) {
+
+        val queues = Array(LANES) { ArrayDeque<Entry>() }
+
+        val inReady = BooleanArray(LANES)
+
+        var waiting = false
+
+        var wakeAt = 0L
+
+        fun isIdle(now: Long) = !waiting && queues.all { it.isEmpty() } && bucket.isFull(now)
+
+    }
+
+    private class Entry(val requestId: Long, val function: TdApi.Function, val chatId: Long, val lane: Int, val tracked: Boolean) {
+
+        var retries = 0
+
+    }
+
+    private val lock = ReentrantLock()
+
+    private val available = lock.newCondition()
+
+    private val global = Bucket(globalRate, globalRate)
+
+    private val chats = HashMap<Long, Chat>()
+
+    private val ready = Array(LANES) { ArrayDeque<Chat>() }
+
+    private val waiting = PriorityQueue<Chat>(compareBy { it.wakeAt })
+
+    private val inFlight = ConcurrentHashMap<Long, Entry>()
+
+    private var sleepNanos = 0L
+
+    private var lastSweep = System.nanoTime()
+
+    private var closed = false
+
+    @Volatile
+    var queued = 0
+        private set
+
+    private val retriedCounter = LongAdder()
+
+    /**
+     * 因 429 重新发送的次数.
+     */
+    val retried get() = retriedCounter.sum()
+
+    private val thread = Thread(::run, "Tooko Send Scheduler #${threadCount.getAndIncrement()}").apply {
+
+        isDaemon = true
+
+        start()
+
+    }
+
+    /**
+     * 需要限流的请求进入队列并返回 true, 其余返回 false. [tracked] 表示请求有等待响应的回调.
+     */
+    internal fun offer(requestId: Long, function: TdApi.Function, tracked: Boolean): Boolean {
+
+        val chatId = chatOf(function) ?: return false
+
+        val lane = if (chatId == NO_CHAT) Lane.ANSWER else currentLane.get() ?: Lane.NORMAL
+
+        lock.withLock {
+
+            check(!closed) { "已停止" }
+
+            enqueue(Entry(requestId, function, chatId, lane.ordinal, tracked), false)
+
+            available.signal()
+
+        }
+
+        return true
+
+    }
+
+    /**
+     * 接收线程收到响应时调用, 响应是可以重试的 429 时重新排队并返回 true.
+     */
+    internal fun onResponse(requestId: Long, result: Object): Boolean {
+
+        val entry = inFlight.remove(requestId) ?: return false
+
+        if (result !is Error || result.code != 429 || entry.retries >= maxRetries) return false
+
+        val seconds = RETRY_AFTER.find(result.message)?.groupValues?.get(1)?.toLongOrNull() ?: 1L
+
+        entry.retries++
+
+        retriedCounter.increment()
+
+        lock.withLock {
+
+            if (closed) return false
+
+            val until = System.nanoTime() + seconds * 1000_000_000L
+
+            if (entry.chatId == NO_CHAT) global.pause(until)
+
+            enqueue(entry, true).bucket.pause(until)
+
+            available.signal()
+
+        }
+
+        return true
+
+    }
+
+    /**
+     * 停止并等待限流线程退出, 之后不再向原生客户端发送.
+     */
+    internal fun close() {
+
+        lock.withLock {
+
+            closed = true
+
+            available.signal()
+
+        }
+
+        if (Thread.currentThread() != thread) thread.join()
+
+    }
+
+    private fun enqueue(entry: Entry, first: Boolean): Chat {
+
+        val chat = chats.getOrPut(entry.chatId) {
+
+            Chat(entry.chatId, when {
+
+                entry.chatId == NO_CHAT -> Bucket(UNLIMITED, UNLIMITED)
+                entry.chatId > 0L -> Bucket(chatRate, 1.0)
+                else -> Bucket(groupRate, 1.0)
+
+            })
+
+        }
+
+        if (first) chat.queues[entry.lane].addFirst(entry) else chat.queues[entry.lane].addLast(entry)
+
+        queued++
+
+        if (!chat.waiting) ready(chat, entry.lane)
+
+        return chat
+
+    }
+
+    private fun ready(chat: Chat, lane: Int) {
+
+        if (chat.inReady[lane]) return
+
+        chat.inReady[lane] = true
+
+        ready[lane].addLast(chat)
+
+    }
+
+    private fun park(chat: Chat, until: Long) {
+
+        chat.waiting = true
+
+        chat.wakeAt = until
+
+        waiting.add(chat)
+
+    }
+
+    /**
+     * 取出下一个可以发送的请求. 没有时返回 null, 并在 [sleepNanos] 中给出最多需要等待多久.
+     */
+    private fun poll(now: Long): Entry? {
+
+        while (true) {
+
+            val chat = waiting.peek() ?: break
+
+            if (chat.wakeAt > now) break
+
+            waiting.poll()
+
+            chat.waiting = false
+
+            for (lane in 0 until LANES) if (chat.queues[lane].isNotEmpty()) ready(chat, lane)
+
+        }
+
+        sleepNanos = global.delay(now)
+
+        if (sleepNanos > 0L) return null
+
+        for (lane in 0 until LANES) {
+
+            while (true) {
+
+                val chat = ready[lane].pollFirst() ?: break
+
+                chat.inReady[lane] = false
+
+                if (chat.waiting) continue
+
+                val queue = chat.queues[lane]
+
+                // 丢弃排队期间已取消或超时的请求.
+
+                while (queue.peekFirst()?.let { it.tracked && !client.isPending(it.requestId) } == true) {
+
+                    queue.pollFirst()
+
+                    queued--
+
+                }
+
+                if (queue.isEmpty()) continue
+
+                val delay = chat.bucket.delay(now)
+
+                if (delay > 0L) {
+
+                    park(chat, now + delay)
+
+                    continue
+
+                }
+
+                chat.bucket.take()
+
+                global.take()
+
+                val entry = queue.pollFirst()
+
+                queued--
+
+                if (queue.isNotEmpty()) ready(chat, lane)
+
+                return entry
+
+            }
+
+        }
+
+        if (now - lastSweep > SWEEP_INTERVAL) {
+
+            lastSweep = now
+
+            chats.values.removeIf { it.isIdle(now) }
+
+        }
+
+        sleepNanos = waiting.peek()?.let { it.wakeAt - now } ?: Long.MAX_VALUE
+
+        return null
+
+    }
+
+    private fun run() {
+
+        while (true) {
+
+            val entry = lock.withLock {
+
+                var next: Entry?
+
+                while (true) {
+
+                    if (closed) return
+
+                    next = poll(System.nanoTime())
+
+                    if (next != null) break
+
+                    if (sleepNanos == Long.MAX_VALUE) available.await() else available.awaitNanos(sleepNanos)
+
+                }
+
+                next!!
+
+            }
+
+            inFlight[entry.requestId] = entry
+
+            runCatching {
+
+                client.sendQueued(entry.requestId, entry.function)
+
+            }.onFailure {
+
+                inFlight.remove(entry.requestId)
+
+                defaultLog.error(it, "TdError - Send Scheduler")
+
+            }
+
+        }
+
+    }
+
+    companion object {
+
+        private const val LANES = 3
+
+        private const val NO_CHAT = 0L
+
+        private const val UNLIMITED = 1000_000.0
+
+        private const val SWEEP_INTERVAL = 60 * 1000_000_000L
+
+        private val RETRY_AFTER = Regex("retry after (\\d+)")
+
+        private val threadCount = AtomicInteger()
+
+        private val currentLane = ThreadLocal<Lane?>()
+
+        /**
+         * 在此上下文中发出的请求进入 [lane] 道, 如 `withContext(TdSendScheduler.lane(Lane.BULK)) { ... }`.
+         */
+        fun lane(lane: Lane): CoroutineContext.Element = currentLane.asContextElement(lane)
+
+        /**
+         * 需要限流的请求所在的会话, 回答查询的请求不属于会话, 为 [NO_CHAT]. 其他请求返回 null.
+         */
+        private fun chatOf(function: TdApi.Function) = when (function) {
+
+            is SendMessage -> function.chatId
+            is SendMessageAlbum -> function.chatId
+            is SendInlineQueryResultMessage -> function.chatId
+            is ForwardMessages -> function.chatId
+            is EditMessageText -> function.chatId
+            is EditMessageCaption -> function.chatId
+            is EditMessageMedia -> function.chatId
+            is EditMessageReplyMarkup -> function.chatId
+            is EditMessageLiveLocation -> function.chatId
+
+            is AnswerCallbackQuery,
+            is AnswerInlineQuery,
+            is AnswerShippingQuery,
+            is AnswerPreCheckoutQuery -> NO_CHAT
+
+            else -> null
+
+        }
+
+    }
+
+}
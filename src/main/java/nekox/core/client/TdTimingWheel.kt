@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import nekox.core.defaultLog
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 哈希时间轮.
+ *
+ * 任务按到期时间放入 [wheelSize] 个格子中的一个, 由一个线程每 [tickMillis] 毫秒推进一格,
+ * 只检查当前格中的任务, 添加与取消都是 O(1). 精度为一格.
+ *
+ * 添加与取消先进入无锁队列, 格子只由时间轮线程修改.
+ */
+class TdTimingWheel(val tickMillis: Long = 100L, wheelSize: Int = 512) {
+
+    init {
+
+        check(tickMillis > 0) { "tickMillis 必须大于 0" }
+        check(wheelSize > 0 && wheelSize and (wheelSize - 1) == 0) { "wheelSize 必须是 2 的幂" }
+
+    }
+
+    inner class Timeout internal constructor(internal val deadline: Long, private val task: () -> Unit) {
+
+        private val state = AtomicInteger(INIT)
+
+        internal var rounds = 0L
+
+        internal var bucket: Bucket? = null
+        internal var prev: Timeout? = null
+        internal var next: Timeout? = null
+
+        val isCancelled get() = state.get() == CANCELLED
+
+        val isExpired get() = state.get() == EXPIRED
+
+        /**
+         * 取消尚未到期的任务, 返回是否取消成功.
+         */
+        fun cancel(): Boolean {
+
+            if (!state.compareAndSet(INIT, CANCELLED)) return false
+
+            cancelled.add(this)
+
+            return true
+
+        }
+
+        internal fun expire() {
+
+            if (!state.compareAndSet(INIT, EXPIRED)) return
+
+            runCatching(task).onFailure {
+
+                defaultLog.error(it, "TdError - Timeout")
+
+            }
+
+        }
+
+    }
+
+    internal inner class Bucket {
+
+        private var head: Timeout? = null
+        private var tail: Timeout? = null
+
+        fun add(timeout: Timeout) {
+
+            timeout.bucket = this
+
+            if (head == null) {
+
+                head = timeout
+
+            } else {
+
+                tail!!.next = timeout
+                timeout.prev = tail
+
+            }
+
+            tail = timeout
+
+        }
+
+        fun remove(timeout: Timeout) {
+
+            val next = timeout.next
+
+            if (timeout.prev != null) timeout.prev!!.next = next else head = next
+            if (next != null) next.prev = timeout.prev else tail = timeout.prev
+
+            timeout.prev = null
+            timeout.next = null
+            timeout.bucket = null
+
+        }
+
+        fun expire() {
+
+            var timeout = head
+
+            while (timeout != null) {
+
+                val next = timeout.next
+
+                if (timeout.rounds <= 0L) {
+
+                    remove(timeout)
+
+                    timeout.expire()
+
+                } else if (timeout.isCancelled) {
+
+                    remove(timeout)
+
+                } else {
+
+                    timeout.rounds--
+
+                }
+
+                timeout = next
+
+            }
+
+        }
+
+    }
+
+    private val mask = wheelSize - 1
+
+    private val buckets = Array(wheelSize) { Bucket() }
+
+    private val pending = ConcurrentLinkedQueue<Timeout>()
+    private val cancelled = ConcurrentLinkedQueue<Timeout>()
+
+    private val startTime = System.nanoTime()
+
+    private var tick = 0L
+
+    private val thread = Thread(::run, "Tooko Timing Wheel #${threadCount.getAndIncrement()}").apply {
+
+        isDaemon = true
+
+        start()
+
+    }
+
+    /**
+     * [delayMillis] 毫秒后在时间轮线程上执行 [task].
+     */
+    fun schedule(delayMillis: Long, task: () -> Unit): Timeout {
+
+        val timeout = Timeout(System.nanoTime() - startTime + delayMillis * 1000_000L, task)
+
+        pending.add(timeout)
+
+        return timeout
+
+    }
+
+    private fun run() {
+
+        val tickNanos = tickMillis * 1000_000L
+
+        while (true) {
+
+            val sleep = (tick + 1) * tickNanos - (System.nanoTime() - startTime)
+
+            if (sleep > 0L) Thread.sleep(sleep / 1000_000L, (sleep % 1000_000L).toInt())
+
+            processCancelled()
+
+            transferPending(tickNanos)
+
+            buckets[(tick and mask.toLong()).toInt()].expire()
+
+            tick++
+
+        }
+
+    }
+
+    private fun processCancelled() {
+
+        while (true) {
+
+            val timeout = cancelled.poll() ?: return
+
+            timeout.bucket?.remove(timeout)
+
+        }
+
+    }
+
+    private fun transferPending(tickNanos: Long) {
+
+        // 每格最多转移的数量, 避免添加过快时一直无法推进.
+
+        for (index in 0 until 100000) {
+
+            val timeout = pending.poll() ?: return
+
+            if (timeout.isCancelled) continue
+
+            val ticks = (timeout.deadline / tickNanos).coerceAtLeast(tick)
+
+            timeout.rounds = (ticks - tick) / buckets.size
+
+            buckets[(ticks and mask.toLong()).toInt()].add(timeout)
+
+        }
+
+    }
+
+    companion object {
+
+        private const val INIT = 0
+        private const val CANCELLED = 1
+        private const val EXPIRED = 2
+
+        private val threadCount = AtomicInteger()
+
+    }
+
+}
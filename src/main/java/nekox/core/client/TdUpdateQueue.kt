@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import td.TdApi.*
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * 接收线程与处理器之间的有界更新队列.
+ *
+ * 同时在处理中的更新不超过 [capacity] 个, 超出的按顺序在队列中等待, 等待的也不超过 [capacity] 个.
+ * 接收线程从不在队列上阻塞, 满载时按 [policy] 处理新到的更新.
+ */
+class TdUpdateQueue internal constructor(private val client: TdClient, val capacity: Int, val policy: Policy, val blockTimeout: Long) {
+
+    enum class Policy {
+
+        /**
+         * 等待的更新放不下下一次接收 (TdOptions.maxEvents 条) 时, 事件循环暂停接收该客户端 (其他客户端照常接收), 直到有空位.
+         * 暂停超过 blockTimeout 毫秒后恢复接收, 以免处理器等待的响应永远无法到达, 此时仍然放不下的更新被丢弃并计入 overflowed.
+         */
+        BLOCK,
+
+        /**
+         * 满载时丢弃低优先级更新, 其余更新同 BLOCK.
+         */
+        DROP,
+
+        /**
+         * 低优先级更新按对象合并, 尚未处理的只保留最新一条; 满载时丢弃. 其余更新同 BLOCK.
+         */
+        COALESCE
+
+    }
+
+    private val permits = Semaphore(capacity)
+
+    private val backlog = ArrayDeque<Object>()
+
+    @Volatile
+    private var backlogSize = 0
+
+    private var saturatedAt = 0L
+
+    private val blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout)
+
+    private val pending = ConcurrentHashMap<Key, Object>()
+
+    private val droppedCounter = LongAdder()
+    private val coalescedCounter = LongAdder()
+    private val overflowedCounter = LongAdder()
+
+    /**
+     * 处理中与等待中的更新数.
+     */
+    val depth get() = capacity - permits.availablePermits() + backlogSize
+
+    val dropped get() = droppedCounter.sum()
+
+    val coalesced get() = coalescedCounter.sum()
+
+    val overflowed get() = overflowedCounter.sum()
+
+    /**
+     * 等待的更新放不下下一次接收且未超过 blockTimeout, 事件循环此时不接收该客户端. 只在接收线程上调用.
+     */
+    internal val paused: Boolean get() {
+
+        val size = backlogSize
+
+        if (size == 0 || size + client.options.maxEvents <= capacity) {
+
+            saturatedAt = 0L
+
+            return false
+
+        }
+
+        val now = System.nanoTime()
+
+        if (saturatedAt == 0L) saturatedAt = now
+
+        return now - saturatedAt < blockTimeoutNanos
+
+    }
+
+    internal fun offer(update: Object) {
+
+        val key = if (policy == Policy.BLOCK) null else lowPriorityKey(update)
+
+        if (key == null) {
+
+            // 没有等待中的更新时直接分发, 否则排在它们之后以保持顺序.
+
+            if (backlogSize == 0 && permits.tryAcquire()) {
+
+                launch(update)
+
+                return
+
+            }
+
+            synchronized(backlog) {
+
+                if (backlog.size >= capacity) {
+
+                    overflowedCounter.increment()
+
+                    return
+
+                }
+
+                backlog.add(update)
+
+                backlogSize = backlog.size
+
+            }
+
+            drain()
+
+            return
+
+        }
+
+        if (policy == Policy.COALESCE && pending.put(key, update) != null) {
+
+            // 已有同一对象的更新在等待处理, 它会取到这条最新的.
+
+            coalescedCounter.increment()
+
+            return
+
+        }
+
+        if (!permits.tryAcquire()) {
+
+            if (policy == Policy.COALESCE) pending.remove(key)
+
+            droppedCounter.increment()
+
+            return
+
+        }
+
+        client.launchUpdate(update) {
+
+            try {
+
+                val latest = if (policy == Policy.COALESCE) pending.remove(key) else update
+
+                if (latest != null) client.handleUpdate(latest)
+
+            } finally {
+
+                release()
+
+            }
+
+        }
+
+    }
+
+    private fun launch(update: Object) = client.launchUpdate(update) {
+
+        try {
+
+            client.handleUpdate(update)
+
+        } finally {
+
+            release()
+
+        }
+
+    }
+
+    private fun release() {
+
+        permits.release()
+
+        if (backlogSize > 0) drain()
+
+    }
+
+    /**
+     * 有空位时按顺序分发等待中的更新. 取出与分发在同一把锁下进行, 并发调用也不会打乱顺序.
+     */
+    private fun drain() = synchronized(backlog) {
+
+        while (backlog.isNotEmpty() && permits.tryAcquire()) {
+
+            launch(backlog.poll())
+
+            backlogSize = backlog.size
+
+        }
+
+    }
+
+    private data class Key(val constructor: Int, val first: Long, val second: Long)
+
+    companion object {
+
+        /**
+         * 低优先级 (可丢弃, 可合并) 的更新所对应的对象, 其他更新返回 null.
+         */
+        private fun lowPriorityKey(update: Object) = when (update) {
+
+            is UpdateUserStatus -> Key(update.constructor, update.userId.toLong(), 0L)
+            is UpdateChatOnlineMemberCount -> Key(update.constructor, update.chatId, 0L)
+            is UpdateMessageViews -> Key(update.constructor, update.chatId, update.messageId)
+
+            else -> null
+
+        }
+
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.client
+
+import td.TdApi.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 更新分发表.
+ *
+ * [ENTRIES] 是唯一的数据来源: 每项的下标即更新的下标, 构造号在启动时由 `UpdateXxx().constructor` 取得,
+ * 回调名默认为 on + 去掉 Update 前缀的类名. TdApi 重新生成后构造号随之变化, 不需要手动同步.
+ *
+ * [indexOf] 在启动时建立的开放寻址表中查找下标, [dispatch] 按下标调用对应的回调.
+ */
+object TdUpdates {
+
+    private class Entry(val constructor: Int, val method: String, val dispatch: suspend TdAbsHandler.(Object) -> Unit)
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <T : Update> on(update: T, method: String = "on" + update.javaClass.simpleName.removePrefix("Update"), dispatch: suspend TdAbsHandler.(T) -> Unit): Entry {
+
+        return Entry(update.constructor, method, dispatch as suspend TdAbsHandler.(Object) -> Unit)
+
+    }
+
+    private val ENTRIES = arrayOf(
+        on(UpdateAuthorizationState()) { onAuthorizationState(it.authorizationState) },
+        on(UpdateNewMessage()) { onNewMessage(it.message.senderUserId, it.message.chatId, it.message) },
+        on(UpdateMessageSendAcknowledged()) { onMessageSendAcknowledged(it.chatId, it.messageId) },
+        on(UpdateMessageSendSucceeded()) { onMessageSendSucceeded(it.message, it.oldMessageId) },
+        on(UpdateMessageSendFailed()) { onMessageSendFailed(it.message, it.oldMessageId, it.errorCode, it.errorMessage) },
+        on(UpdateMessageContent()) { onMessageContent(it.chatId, it.messageId, it.newContent) },
+        on(UpdateMessageEdited()) { onMessageEdited(it.chatId, it.messageId, it.editDate, it.replyMarkup) },
+        on(UpdateMessageViews()) { onMessageViews(it.chatId, it.messageId, it.views) },
+        on(UpdateMessageContentOpened()) { onMessageContentOpened(it.chatId, it.messageId) },
+        on(UpdateMessageMentionRead()) { onMessageMentionRead(it.chatId, it.messageId, it.unreadMentionCount) },
+        on(UpdateNewChat()) { onNewChat(it.chat) },
+        on(UpdateChatTitle()) { onChatTitle(it.chatId, it.title) },
+        on(UpdateChatPhoto()) { onChatPhoto(it.chatId, it.photo) },
+        on(UpdateChatPermissions()) { onChatPermissions(it.chatId, it.permissions) },
+        on(UpdateChatLastMessage()) { onChatLastMessage(it.chatId, it.lastMessage, it.order) },
+        on(UpdateChatOrder()) { onChatOrder(it.chatId, it.order) },
+        on(UpdateChatIsPinned()) { onChatIsPinned(it.chatId, it.isPinned, it.order) },
+        on(UpdateChatIsMarkedAsUnread()) { onChatIsMarkedAsUnread(it.chatId, it.isMarkedAsUnread) },
+        on(UpdateChatIsSponsored()) { onChatIsSponsored(it.chatId, it.isSponsored, it.order) },
+        on(UpdateChatDefaultDisableNotification()) { onChatDefaultDisableNotification(it.chatId, it.defaultDisableNotification) },
+        on(UpdateChatReadInbox()) { onChatReadInbox(it.chatId, it.lastReadInboxMessageId, it.unreadCount) },
+        on(UpdateChatReadOutbox()) { onChatReadOutbox(it.chatId, it.lastReadOutboxMessageId) },
+        on(UpdateChatUnreadMentionCount()) { onChatUnreadMentionCount(it.chatId, it.unreadMentionCount) },
+        on(UpdateChatNotificationSettings()) { onChatNotificationSettings(it.chatId, it.notificationSettings) },
+        on(UpdateScopeNotificationSettings()) { onScopeNotificationSettings(it.scope, it.notificationSettings) },
+        on(UpdateChatPinnedMessage()) { onChatPinnedMessage(it.chatId, it.pinnedMessageId) },
+        on(UpdateChatReplyMarkup()) { onChatReplyMarkup(it.chatId, it.replyMarkupMessageId) },
+        on(UpdateChatDraftMessage()) { onChatDraftMessage(it.chatId, it.draftMessage, it.order) },
+        on(UpdateChatOnlineMemberCount()) { onChatOnlineMemberCount(it.chatId, it.onlineMemberCount) },
+        on(UpdateNotification()) { onNotification(it.notificationGroupId, it.notification) },
+        on(UpdateNotificationGroup()) { onNotificationGroup(it.notificationGroupId, it.type, it.chatId, it.notificationSettingsChatId, it.isSilent, it.totalCount, it.addedNotifications, it.removedNotificationIds) },
+        on(UpdateActiveNotifications()) { onActiveNotifications(it.groups) },
+        on(UpdateHavePendingNotifications()) { onHavePendingNotifications(it.haveDelayedNotifications, it.haveUnreceivedNotifications) },
+        on(UpdateDeleteMessages()) { onDeleteMessages(it.chatId, it.messageIds, it.isPermanent, it.fromCache) },
+        on(UpdateUserChatAction()) { onUserChatAction(it.chatId, it.userId, it.action) },
+        on(UpdateUserStatus()) { onUserStatus(it.userId, it.status) },
+        on(UpdateUser()) { onUser(it.user) },
+        on(UpdateBasicGroup()) { onBasicGroup(it.basicGroup) },
+        on(UpdateSupergroup()) { onSupergroup(it.supergroup) },
+        on(UpdateSecretChat()) { onSecretChat(it.secretChat) },
+        on(UpdateUserFullInfo()) { onUserFullInfo(it.userId, it.userFullInfo) },
+        on(UpdateBasicGroupFullInfo()) { onBasicGroupFullInfo(it.basicGroupId, it.basicGroupFullInfo) },
+        on(UpdateSupergroupFullInfo()) { onSupergroupFullInfo(it.supergroupId, it.supergroupFullInfo) },
+        on(UpdateServiceNotification()) { onServiceNotification(it.type, it.content) },
+        on(UpdateFile()) { onFile(it.file) },
+        on(UpdateFileGenerationStart()) { onFileGenerationStart(it.generationId, it.originalPath, it.destinationPath, it.conversion) },
+        on(UpdateFileGenerationStop()) { onFileGenerationStop(it.generationId) },
+        on(UpdateCall()) { onCall(it.call) },
+        on(UpdateUserPrivacySettingRules()) { onUserPrivacySettingRules(it.setting, it.rules) },
+        on(UpdateUnreadMessageCount()) { onUnreadMessageCount(it.unreadCount, it.unreadUnmutedCount) },
+        on(UpdateUnreadChatCount()) { onUnreadChatCount(it.unreadCount, it.unreadUnmutedCount, it.markedAsUnreadCount, it.markedAsUnreadUnmutedCount) },
+        on(UpdateOption()) { onOption(it.name, it.value) },
+        on(UpdateInstalledStickerSets()) { onInstalledStickerSets(it.isMasks, it.stickerSetIds) },
+        on(UpdateTrendingStickerSets()) { onTrendingStickerSets(it.stickerSets) },
+        on(UpdateRecentStickers()) { onRecentStickers(it.isAttached, it.stickerIds) },
+        on(UpdateFavoriteStickers()) { onFavoriteStickers(it.stickerIds) },
+        on(UpdateSavedAnimations()) { onSavedAnimations(it.animationIds) },
+        on(UpdateSelectedBackground()) { onSelectedBackground(it.forDarkTheme, it.background) },
+        on(UpdateLanguagePackStrings()) { onLanguagePackStrings(it.localizationTarget, it.languagePackId, it.strings) },
+        on(UpdateConnectionState()) { onConnectionState(it.state) },
+        on(UpdateTermsOfService()) { onTermsOfService(it.termsOfServiceId, it.termsOfService) },
+        on(UpdateNewInlineQuery()) { onNewInlineQuery(it.id, it.senderUserId, it.userLocation, it.query, it.offset) },
+        on(UpdateNewChosenInlineResult()) { onNewChosenInlineResult(it.senderUserId, it.userLocation, it.query, it.resultId, it.inlineMessageId) },
+        on(UpdateNewCallbackQuery(), "handleNewCallbackQuery") { handleNewCallbackQuery(it.id, it.senderUserId, it.chatId, it.messageId, it.chatInstance, it.payload) },
+        on(UpdateNewInlineCallbackQuery(), "handleNewInlineCallbackQuery") { handleNewInlineCallbackQuery(it.id, it.senderUserId, it.inlineMessageId, it.chatInstance, it.payload) },
+        on(UpdateNewShippingQuery()) { onNewShippingQuery(it.id, it.senderUserId, it.invoicePayload, it.shippingAddress) },
+        on(UpdateNewPreCheckoutQuery()) { onNewPreCheckoutQuery(it.id, it.senderUserId, it.currency, it.totalAmount, it.invoicePayload, it.shippingOptionId, it.orderInfo) },
+        on(UpdateNewCustomEvent()) { onNewCustomEvent(it.event) },
+        on(UpdateNewCustomQuery()) { onNewCustomQuery(it.id, it.data, it.timeout) },
+        on(UpdatePoll()) { onPoll(it.poll) }
+    )
+
+    val CONSTRUCTORS = IntArray(ENTRIES.size) { ENTRIES[it].constructor }
+
+    val size get() = CONSTRUCTORS.size
+
+    private val BITS = 32 - Integer.numberOfLeadingZeros(CONSTRUCTORS.size * 4 - 1)
+
+    private val keys = IntArray(1 shl BITS)
+
+    private val indexes = IntArray(1 shl BITS) { -1 }
+
+    init {
+
+        CONSTRUCTORS.forEachIndexed { index, constructor ->
+
+            var slot = slotOf(constructor)
+
+            while (indexes[slot] != -1) {
+
+                check(keys[slot] != constructor) { "重复的更新: ${ENTRIES[index].method}" }
+
+                slot = (slot + 1) and (keys.size - 1)
+
+            }
+
+            keys[slot] = constructor
+            indexes[slot] = index
+
+        }
+
+    }
+
+    private fun slotOf(constructor: Int) = (constructor * -0x61c88647) ushr (32 - BITS)
+
+    fun indexOf(constructor: Int): Int {
+
+        var slot = slotOf(constructor)
+
+        while (true) {
+
+            val index = indexes[slot]
+
+            if (index == -1 || keys[slot] == constructor) return index
+
+            slot = (slot + 1) and (keys.size - 1)
+
+        }
+
+    }
+
+    suspend fun dispatch(handler: TdAbsHandler, index: Int, update: Object) = ENTRIES[index].dispatch(handler, update)
+
+    private val handled = ConcurrentHashMap<Class<*>, BooleanArray>()
+
+    /**
+     * 处理器需要接收的更新, 按下标存放.
+     * 优先使用 [TdAbsHandler.handledUpdates] (属于实例, 不缓存), 否则只包含处理器实际重写了的回调 (按类缓存).
+     */
+    fun handledBy(handler: TdAbsHandler): BooleanArray {
+
+        val declared = handler.handledUpdates ?: return handled.getOrPut(handler.javaClass) {
+
+            BooleanArray(size) { overrides(handler.javaClass, ENTRIES[it].method) }
+
+        }
+
+        return BooleanArray(size).apply {
+
+            declared.forEach { constructor ->
+
+                indexOf(constructor).takeIf { it != -1 }?.let { this[it] = true }
+
+            }
+
+        }
+
+    }
+
+    private val NOOP_BASES = setOf<Class<*>>(TdHandler::class.java, TdBotHandler::class.java)
+
+    private val CLIENT_METHODS = setOf("onAuthorizationState", "onMessageSendSucceeded", "onMessageSendFailed")
+
+    private fun overrides(clazz: Class<*>, name: String): Boolean {
+
+        val method = clazz.methods.find { it.name == name && !it.isBridge } ?: return true
+
+        val declaring = method.declaringClass
+
+        if (declaring in NOOP_BASES) return false
+
+        if (declaring == TdClient::class.java) return name in CLIENT_METHODS
+
+        return true
+
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("unused")
+
+package nekox.core.raw
+
+import nekox.core.client.TdAbsHandler
+import td.TdApi.*
+
+/*
+ * 不挂起的缓存查询, 需要 TdOptions.entityCache, 未启用或未缓存时返回 null.
+ *
+ * 启用后 getUser, getChat, getSupergroup, getBasicGroup, getFile 也会优先由缓存应答, 不经过 TDLib.
+ */
+
+fun TdAbsHandler.cachedUser(userId: Int): User? = sudo.entities?.user(userId)
+
+fun TdAbsHandler.cachedChat(chatId: Long): Chat? = sudo.entities?.chat(chatId)
+
+fun TdAbsHandler.cachedSupergroup(supergroupId: Int): Supergroup? = sudo.entities?.supergroup(supergroupId)
+
+fun TdAbsHandler.cachedBasicGroup(basicGroupId: Int): BasicGroup? = sudo.entities?.basicGroup(basicGroupId)
+
+fun TdAbsHandler.cachedFile(fileId: Int): File? = sudo.entities?.file(fileId)
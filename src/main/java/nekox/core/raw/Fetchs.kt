@@ -20,14 +20,31 @@ package nekox.core.raw
 
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.GlobalScope
-import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.launch
 import nekox.core.client.TdAbsHandler
+import td.TdApi.GetMessages
+import td.TdApi.Message
+import td.TdApi.Messages
 
 
-suspend fun TdAbsHandler.fetchMessages(charId: Number, vararg messageIds: Long) = coroutineScope {
+/**
+ * 批量获取消息, 每 100 个 ID 合并为一个 GetMessages 并同时发出. 结果按 [messageIds] 的顺序, 不存在的消息为 null.
+ */
+suspend fun TdAbsHandler.fetchMessages(charId: Number, vararg messageIds: Long): List<Message?> {
+
+    val chatId = charId.toLong()
+
+    val batches = messageIds.toList().chunked(100).map { GetMessages(chatId, it.toLongArray()) }
+
+    val results = syncAllOrNull<Messages>(batches)
+
+    return batches.indices.flatMap { index ->
+
+        results[index]?.messages?.asList() ?: arrayOfNulls<Message>(batches[index].messageIds.size).asList()
 
-    messageIds.forEach { getMessageOrNull(charId.toLong(), it) }
+    }
 
 }
 
@@ -35,10 +52,37 @@ fun TdAbsHandler.fetchMessages(charId: Number, vararg messageIds: Long, block: s
 
     GlobalScope.launch {
 
-        messageIds.forEach { getMessageOrNull(charId.toLong(), it) }
+        fetchMessages(charId, *messageIds)
 
         block.invoke(this)
 
     }
 
-}
\ No newline at end of file
+}
+
+/**
+ * 从 [fromMessageId] (为 0 时从最新的消息) 开始按时间倒序逐条返回会话中的消息, 每次请求一页.
+ */
+fun TdAbsHandler.chatHistory(chatId: Number, fromMessageId: Long = 0L, onlyLocal: Boolean = false): Flow<Message> = flow {
+
+    var from = fromMessageId
+
+    var last = 0L
+
+    while (true) {
+
+        // 上一页的最后一条可能作为下一页的第一条再次返回.
+
+        val messages = getChatHistory(chatId.toLong(), from, 0, 100, onlyLocal).messages.filter { it.id != last }
+
+        if (messages.isEmpty()) break
+
+        messages.forEach { emit(it) }
+
+        last = messages.last().id
+
+        from = last
+
+    }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("unused")
+
+package nekox.core.utils
+
+import cn.hutool.core.io.FileUtil
+import kotlinx.coroutines.*
+import kotlinx.coroutines.sync.Semaphore
+import nekox.TdEnv
+import nekox.core.client.TdException
+import nekox.core.client.TdSendScheduler
+import td.TdApi.Message
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+
+infix fun MessageFactory.broadcast(name: String) = BroadcastFactory(this, name)
+
+/**
+ * 向大量会话发送同一条消息.
+ *
+ * 接收者按顺序从迭代器或文件中读取, 同时发送中的不超过 [concurrency] 条. 请求在 BULK 道中发出,
+ * 启用了 TdOptions.rateLimit 时由 [TdSendScheduler] 限流, 否则按每秒 [rate] 条发送. 遇到 429 时等待后重试.
+ *
+ * 进度 (之前的接收者都已处理完的位置, 以及该位置之后已处理完的接收者) 定期写入 data/{botId}/.broadcast/[name].csv,
+ * 中断后以同一 [name] 重新开始时跳过已处理的接收者, 全部完成后删除.
+ * 中断时已发出但尚未确认的消息不算已处理, 继续时会再次发送, 这些接收者可能收到两次.
+ */
+class BroadcastFactory(val message: MessageFactory, val name: String) {
+
+    var concurrency = 16
+
+    var rate = 25.0
+
+    var maxRetries = 5
+
+    /**
+     * 单条消息 (包括等待发送完成) 的超时毫秒数, 超时计入 [failed].
+     */
+    var timeout = 60 * 1000L
+
+    private val succeededCounter = LongAdder()
+    private val failedCounter = LongAdder()
+    private val blockedCounter = LongAdder()
+
+    val succeeded get() = succeededCounter.sum()
+
+    val failed get() = failedCounter.sum()
+
+    /**
+     * 已停用或屏蔽了机器人的用户 (403).
+     */
+    val blocked get() = blockedCounter.sum()
+
+    /**
+     * 之前的接收者都已处理完的位置.
+     */
+    @Volatile
+    var position = 0L
+        private set
+
+    private val done = HashSet<Long>()
+
+    private var lastSave = 0L
+
+    private val nextSlot = AtomicLong()
+
+    private val checkpoint by lazy { TdEnv.getFile("data/${message.context.sudo.me.id}/.broadcast/$name.csv") }
+
+    infix fun concurrency(concurrency: Int): BroadcastFactory {
+
+        check(concurrency > 0) { "并发数必须大于 0" }
+
+        this.concurrency = concurrency
+
+        return this
+
+    }
+
+    infix fun timeout(timeout: Long): BroadcastFactory {
+
+        check(timeout > 0) { "超时必须大于 0" }
+
+        this.timeout = timeout
+
+        return this
+
+    }
+
+    infix fun rate(rate: Double): BroadcastFactory {
+
+        check(rate > 0) { "速率必须大于 0" }
+
+        this.rate = rate
+
+        return this
+
+    }
+
+    suspend infix fun sendTo(recipients: Iterable<Number>): Unit = sendTo(recipients.iterator())
+
+    /**
+     * 发送给 [file] 中的会话, 每行一个 ID, 空行跳过.
+     */
+    suspend infix fun sendToFile(file: File): Unit = withContext(Dispatchers.IO) {
+
+        file.bufferedReader().useLines { lines ->
+
+            sendTo(lines.map { it.trim() }.filter { it.isNotEmpty() }.map { it.toLong() }.iterator())
+
+        }
+
+    }
+
+    suspend infix fun sendTo(recipients: Iterator<Number>) = withContext<Unit>(TdSendScheduler.lane(TdSendScheduler.Lane.BULK)) {
+
+        restore()
+
+        val permits = Semaphore(concurrency)
+
+        var index = 0L
+
+        try {
+
+            coroutineScope {
+
+                while (recipients.hasNext()) {
+
+                    val chatId = recipients.next().toLong()
+
+                    val current = index++
+
+                    if (current < position || isDone(current)) continue
+
+                    permits.acquire()
+
+                    launch {
+
+                        // 被取消时不记为完成, 继续时会重新发送.
+
+                        try {
+
+                            sendOne(chatId)
+
+                            finish(current)
+
+                        } finally {
+
+                            permits.release()
+
+                        }
+
+                    }
+
+                }
+
+            }
+
+        } catch (e: Throwable) {
+
+            save(true)
+
+            throw e
+
+        }
+
+        checkpoint.delete()
+
+    }
+
+    private suspend fun sendOne(chatId: Long) {
+
+        var retries = 0
+
+        while (true) {
+
+            if (message.context.sudo.scheduler == null) pace()
+
+            try {
+
+                message.context.sync<Message>(message.mkSend(chatId), timeout)
+
+                succeededCounter.increment()
+
+                return
+
+            } catch (e: TdException) {
+
+                if (e.code == 429 && retries++ < maxRetries) {
+
+                    delay((RETRY_AFTER.find(e.message)?.groupValues?.get(1)?.toLongOrNull() ?: 1L) * 1000L)
+
+                    continue
+
+                }
+
+                if (e.code == 403) blockedCounter.increment() else failedCounter.increment()
+
+                return
+
+            }
+
+        }
+
+    }
+
+    /**
+     * 未启用限流调度时, 按 [rate] 均匀分配发送时间.
+     */
+    private suspend fun pace() {
+
+        val interval = (1000_000_000L / rate).toLong()
+
+        val now = System.nanoTime()
+
+        val slot = nextSlot.getAndAccumulate(now) { next, current -> maxOf(next, current) + interval }.coerceAtLeast(now)
+
+        if (slot > now) delay((slot - now) / 1000_000L)
+
+    }
+
+    @Synchronized
+    private fun isDone(index: Long) = index in done
+
+    @Synchronized
+    private fun finish(index: Long) {
+
+        done.add(index)
+
+        while (done.remove(position)) position++
+
+        save(false)
+
+    }
+
+    @Synchronized
+    private fun save(force: Boolean) {
+
+        val now = System.currentTimeMillis()
+
+        if (!force && now - lastSave < SAVE_INTERVAL) return
+
+        lastSave = now
+
+        // 先写入临时文件再替换, 中断时不会留下写了一半的进度.
+
+        val temp = File(checkpoint.path + ".tmp")
+
+        FileUtil.writeUtf8String("$position,$succeeded,$failed,$blocked\n${done.joinToString(",")}", temp)
+
+        Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+
+    }
+
+    /**
+     * 每次 [sendTo] 开始时从进度文件恢复, 没有进度文件时从头开始.
+     */
+    @Synchronized
+    private fun restore() {
+
+        position = 0L
+
+        done.clear()
+
+        succeededCounter.reset()
+        failedCounter.reset()
+        blockedCounter.reset()
+
+        if (!checkpoint.isFile) return
+
+        val lines = FileUtil.readUtf8Lines(checkpoint)
+
+        val fields = lines[0].split(",").map { it.toLong() }
+
+        position = fields[0]
+
+        succeededCounter.add(fields[1])
+        failedCounter.add(fields[2])
+        blockedCounter.add(fields[3])
+
+        lines.getOrNull(1)?.split(",")?.filter { it.isNotBlank() }?.forEach { done.add(it.toLong()) }
+
+    }
+
+    companion object {
+
+        private const val SAVE_INTERVAL = 1000L
+
+        private val RETRY_AFTER = Regex("retry after (\\d+)")
+
+    }
+
+}
@@ -16,78 +16,81 @@
 
 package nekox.core.utils
 
-import cn.hutool.core.io.FileUtil
 import cn.hutool.core.text.csv.CsvUtil
-import cn.hutool.core.util.CharsetUtil
 import nekox.TdEnv
 import nekox.core.client.TdAbsHandler
-import nekox.core.shift
-import java.util.*
 import kotlin.collections.HashMap
 
-fun TdAbsHandler.readDataFrom(name: String): List<List<String>>? {
+/**
+ * 旧版每次整体重写的 `{name}.csv` 导入 [TdAbsHandler.sudo] 的存储中的表 [table] 后删除.
+ *
+ * [rows] 时按行导入, 以行号为键; 否则每行的第一列为键. 存储本身是 [CsvStorage] 且表名相同时文件就是表本身, 不处理.
+ */
+private fun TdAbsHandler.migrate(name: String, table: String, rows: Boolean) {
 
-    val csvFile = TdEnv.getFile("data/${sudo.me.id}/.persist/$name.csv")
+    val storage = sudo.storage
 
-    val data = LinkedList<List<String>>()
+    if (storage is CsvStorage && table == name) return
 
-    if (csvFile.isFile) {
+    val csvFile = TdEnv.getFile("data/${sudo.me.id}/.persist/$name.csv")
+
+    if (!csvFile.isFile) return
 
-        CsvUtil.getReader().read(csvFile).forEach {
+    val data = HashMap<String, List<String>>()
 
-            data.add(it.rawList)
+    CsvUtil.getReader().read(csvFile).rows.forEachIndexed { index, row ->
 
-        }
+        if (rows) data["$index"] = row.rawList else if (row.rawList.isNotEmpty()) data[row.rawList[0]] = row.rawList.drop(1)
 
     }
 
-    csvFile.delete()
+    storage.update(table, data)
 
-    return data.takeIf { it.isNotEmpty() }
+    storage.sync()
+
+    csvFile.delete()
 
 }
 
+/**
+ * 按行读取 [writeDataTo] 写入的表 [name], 行的顺序与内容 (包括空行与首列相同的行) 保持不变.
+ *
+ * 按行的表在存储中是单独的表 `{name}.rows`, 以行号为键.
+ */
+fun TdAbsHandler.readDataFrom(name: String): List<List<String>>? {
 
-fun TdAbsHandler.writeDataTo(name: String, data: List<List<String>>) {
+    migrate(name, "$name.rows", true)
 
-    val csvFile = TdEnv.getFile("data/${sudo.me.id}/.persist/$name.csv")
+    return sudo.storage.load("$name.rows").entries
+            .sortedBy { it.key.toInt() }
+            .map { it.value }
+            .takeIf { it.isNotEmpty() }
 
-    if (csvFile.isFile) csvFile.delete()
+}
 
-    FileUtil.touch(csvFile)
+/**
+ * 按行写入表 [name], 替换原有的全部行, 只写入有变化的行.
+ */
+fun TdAbsHandler.writeDataTo(name: String, data: List<List<String>>) {
 
-    with(CsvUtil.getWriter(csvFile, CharsetUtil.CHARSET_UTF_8)) {
+    val rows = HashMap<String, List<String>>()
 
-        write(* data.map { it.toTypedArray() }.toTypedArray())
+    data.forEachIndexed { index, row -> rows["$index"] = row }
 
-        close()
-
-    }
+    sudo.storage.replace("$name.rows", rows)
 
 }
 
-fun TdAbsHandler.readDataMapFrom(name: String): HashMap<String, List<String>>? {
-
-    val dataList = readDataFrom(name)
-
-    val data = HashMap<String, List<String>>()
-
-    dataList?.forEach {
+fun TdAbsHandler.readDataMapFrom(name: String): HashMap<String, List<String>> {
 
-        data[it[0]] = it.shift().toList()
-
-    }
+    migrate(name, name, false)
 
-    return data
+    return HashMap(sudo.storage.load(name))
 
 }
 
 fun TdAbsHandler.writeDataMapTo(name: String, data: Map<String, List<String>>) {
 
-    writeDataTo(name, data.map {
+    sudo.storage.replace(name, data)
 
-        LinkedList<String>(listOf(it.key)).apply { addAll(it.value) }
-
-    })
-
-}
\ No newline at end of file
+}
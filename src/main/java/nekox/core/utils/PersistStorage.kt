@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.utils
+
+import cn.hutool.core.io.FileUtil
+import cn.hutool.core.text.csv.CsvUtil
+import cn.hutool.core.util.CharsetUtil
+import java.io.Closeable
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * 持久化数据的存储引擎, 每张表是 键 -> 字符串列表 的映射, 见 [readDataMapFrom] 与 [writeDataMapTo].
+ */
+interface PersistStorage : Closeable {
+
+    /**
+     * 读取表 [name] 的全部数据, 不存在时返回空表.
+     */
+    fun load(name: String): Map<String, List<String>>
+
+    /**
+     * 写入 [changed] 中的键并删除 [removed] 中的键, 其余的键不变.
+     */
+    fun update(name: String, changed: Map<String, List<String>>, removed: Collection<String> = emptyList())
+
+    /**
+     * 以 [data] 替换整张表, 只写入有变化的键.
+     */
+    fun replace(name: String, data: Map<String, List<String>>) {
+
+        val old = load(name)
+
+        update(name, data.filter { old[it.key] != it.value }, old.keys.filter { it !in data })
+
+    }
+
+    /**
+     * 将已写入的数据落盘.
+     */
+    fun sync()
+
+}
+
+/**
+ * 每张表一个 CSV 文件 `{name}.csv`, 每次写入都重写整个文件.
+ */
+class CsvStorage(val dir: File) : PersistStorage {
+
+    private fun file(name: String) = File(dir, "$name.csv")
+
+    @Synchronized
+    override fun load(name: String): Map<String, List<String>> {
+
+        val file = file(name)
+
+        val data = HashMap<String, List<String>>()
+
+        if (file.isFile) CsvUtil.getReader().read(file).forEach {
+
+            if (it.rawList.isNotEmpty()) data[it.rawList[0]] = it.rawList.drop(1)
+
+        }
+
+        return data
+
+    }
+
+    @Synchronized
+    override fun update(name: String, changed: Map<String, List<String>>, removed: Collection<String>) {
+
+        val data = HashMap(load(name))
+
+        removed.forEach { data.remove(it) }
+
+        data.putAll(changed)
+
+        val file = file(name)
+
+        // 先写入临时文件再替换, 中断时不会留下写了一半的文件.
+
+        val temp = File(file.path + ".tmp")
+
+        FileUtil.touch(temp)
+
+        with(CsvUtil.getWriter(temp, CharsetUtil.CHARSET_UTF_8)) {
+
+            write(*data.map { arrayOf(it.key) + it.value }.toTypedArray())
+
+            close()
+
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+
+    }
+
+    override fun sync() = Unit
+
+    override fun close() = Unit
+
+}
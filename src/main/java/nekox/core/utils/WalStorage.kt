@@ -0,0 +1,449 @@
+/*
+ * Copyright (c) 2019 - 2020 KazamaWataru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nekox.core.utils
+
+import nekox.core.defaultLog
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.CRC32
+
+/**
+ * 预写日志存储.
+ *
+ * 每张表一个只追加的日志文件 `{name}.wal`, 每条记录是一次写入或删除: 长度, CRC32, 内容.
+ * 打开时重放日志得到内存中的表, 末尾不完整或校验失败的记录 (写入时中断) 会被截掉.
+ *
+ * 写入先进入缓冲, 每 [syncInterval] 毫秒统一写入文件并 fsync 一次, 崩溃时最多丢失这段时间内的写入;
+ * 为 0 时每次写入都立即落盘.
+ * 日志超过 [compactThreshold] 字节且记录数超过存活键数的两倍时, 重写为只含存活键的新日志.
+ */
+class WalStorage(val dir: File, val syncInterval: Long = 1000L, val compactThreshold: Long = 1L shl 20) : PersistStorage {
+
+    init {
+
+        check(syncInterval >= 0) { "syncInterval 不能小于 0" }
+
+        dir.mkdirs()
+
+    }
+
+    private inner class Table(name: String) {
+
+        val file = File(dir, "$name.wal")
+
+        val data = HashMap<String, List<String>>()
+
+        val pending = Buffer()
+
+        var channel: FileChannel
+
+        var records = 0
+
+        /**
+         * 写入失败且无法截回写入前的位置, 日志末尾可能有半条记录, 下次提交时改为重写整个日志.
+         */
+        var broken = false
+
+        init {
+
+            channel = open(file)
+
+            replay()
+
+        }
+
+        private fun replay() {
+
+            var valid = 0L
+
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+
+                val crc = CRC32()
+
+                while (true) {
+
+                    val length = try {
+
+                        input.readInt()
+
+                    } catch (e: EOFException) {
+
+                        break
+
+                    }
+
+                    if (length <= 0 || valid + 8 + length > channel.size()) break
+
+                    val checksum = input.readInt()
+
+                    val body = ByteArray(length)
+
+                    input.readFully(body)
+
+                    crc.reset()
+                    crc.update(body)
+
+                    if (crc.value.toInt() != checksum) break
+
+                    apply(DataInputStream(ByteArrayInputStream(body)))
+
+                    valid += 8 + length
+
+                    records++
+
+                }
+
+            }
+
+            if (valid < channel.size()) {
+
+                defaultLog.warn("TdWarn - WAL ${file.name}: 截掉末尾 ${channel.size() - valid} 字节的不完整记录")
+
+                channel.truncate(valid)
+
+            }
+
+            channel.position(valid)
+
+        }
+
+        private fun apply(input: DataInputStream) {
+
+            val op = input.readByte()
+
+            val key = input.readString()
+
+            if (op == PUT) {
+
+                data[key] = List(input.readInt()) { input.readString() }
+
+            } else {
+
+                data.remove(key)
+
+            }
+
+        }
+
+        fun put(key: String, value: List<String>) {
+
+            data[key] = value
+
+            pending.record {
+
+                writeByte(PUT.toInt())
+
+                writeString(key)
+
+                writeInt(value.size)
+
+                value.forEach { writeString(it) }
+
+            }
+
+            records++
+
+        }
+
+        fun remove(key: String) {
+
+            if (data.remove(key) == null) return
+
+            pending.record {
+
+                writeByte(REMOVE.toInt())
+
+                writeString(key)
+
+            }
+
+            records++
+
+        }
+
+        fun commit() {
+
+            if (broken) {
+
+                // 内存中的表已包含缓冲中的记录.
+
+                compact()
+
+                pending.reset()
+
+                broken = false
+
+                return
+
+            }
+
+            if (pending.size() > 0) {
+
+                val start = channel.position()
+
+                try {
+
+                    pending.writeTo(channel)
+
+                    channel.force(false)
+
+                } catch (e: IOException) {
+
+                    // 截回写入前的位置, 缓冲保留到下次重试, 以免重试时接在写了一半的记录之后.
+
+                    runCatching {
+
+                        channel.truncate(start)
+
+                        channel.position(start)
+
+                    }.onFailure { broken = true }
+
+                    throw e
+
+                }
+
+            }
+
+            if (channel.size() > compactThreshold && records > data.size * 2) compact()
+
+        }
+
+        /**
+         * 将存活的键写入临时文件, 落盘后替换原日志.
+         */
+        private fun compact() {
+
+            val temp = File(file.path + ".tmp")
+
+            val buffer = Buffer()
+
+            open(temp).use { output ->
+
+                output.truncate(0)
+
+                data.forEach { (key, value) ->
+
+                    buffer.record {
+
+                        writeByte(PUT.toInt())
+
+                        writeString(key)
+
+                        writeInt(value.size)
+
+                        value.forEach { writeString(it) }
+
+                    }
+
+                    if (buffer.size() > 64 * 1024) buffer.writeTo(output)
+
+                }
+
+                buffer.writeTo(output)
+
+                output.force(false)
+
+            }
+
+            channel.close()
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+
+            channel = open(file)
+
+            channel.position(channel.size())
+
+            records = data.size
+
+        }
+
+    }
+
+    private val tables = HashMap<String, Table>()
+
+    private val syncer = if (syncInterval > 0) Executors.newSingleThreadScheduledExecutor {
+
+        Thread(it, "Tooko WAL Sync #${threadCount.getAndIncrement()}").apply { isDaemon = true }
+
+    }.apply {
+
+        scheduleWithFixedDelay({
+
+            runCatching(::sync).onFailure { defaultLog.error(it, "TdError - WAL Sync") }
+
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS)
+
+    } else null
+
+    @Volatile
+    private var closed = false
+
+    private fun table(name: String): Table {
+
+        check(!closed) { "已关闭." }
+
+        return synchronized(tables) { tables.getOrPut(name) { Table(name) } }
+
+    }
+
+    override fun load(name: String): Map<String, List<String>> {
+
+        val table = table(name)
+
+        return synchronized(table) { HashMap(table.data) }
+
+    }
+
+    override fun update(name: String, changed: Map<String, List<String>>, removed: Collection<String>) {
+
+        val table = table(name)
+
+        synchronized(table) {
+
+            removed.forEach { table.remove(it) }
+
+            changed.forEach { (key, value) -> table.put(key, value) }
+
+            if (syncer == null) table.commit()
+
+        }
+
+    }
+
+    override fun replace(name: String, data: Map<String, List<String>>) {
+
+        val table = table(name)
+
+        synchronized(table) {
+
+            table.data.keys.filter { it !in data }.forEach { table.remove(it) }
+
+            data.forEach { (key, value) -> if (table.data[key] != value) table.put(key, value) }
+
+            if (syncer == null) table.commit()
+
+        }
+
+    }
+
+    override fun sync() {
+
+        synchronized(tables) { tables.values.toList() }.forEach { table ->
+
+            synchronized(table) { table.commit() }
+
+        }
+
+    }
+
+    override fun close() {
+
+        if (closed) return
+
+        syncer?.shutdown()
+
+        syncer?.awaitTermination(10, TimeUnit.SECONDS)
+
+        sync()
+
+        closed = true
+
+        synchronized(tables) { tables.values.forEach { it.channel.close() } }
+
+    }
+
+    /**
+     * 待写入的记录, 每条记录写完内容后补上长度与校验.
+     */
+    private class Buffer : ByteArrayOutputStream() {
+
+        private val output = DataOutputStream(this)
+
+        private val crc = CRC32()
+
+        fun record(block: DataOutputStream.() -> Unit) {
+
+            val start = count
+
+            output.writeLong(0L)
+
+            output.block()
+
+            val length = count - start - 8
+
+            crc.reset()
+            crc.update(buf, start + 8, length)
+
+            ByteBuffer.wrap(buf, start, 8).putInt(length).putInt(crc.value.toInt())
+
+        }
+
+        /**
+         * 全部写入后才清空, 中途失败时内容保留.
+         */
+        fun writeTo(channel: FileChannel) {
+
+            val buffer = ByteBuffer.wrap(buf, 0, count)
+
+            while (buffer.hasRemaining()) channel.write(buffer)
+
+            reset()
+
+        }
+
+    }
+
+    companion object {
+
+        private const val PUT: Byte = 1
+        private const val REMOVE: Byte = 2
+
+        private val threadCount = AtomicInteger()
+
+        private fun open(file: File) = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+
+        private fun DataOutputStream.writeString(value: String) {
+
+            val bytes = value.toByteArray(Charsets.UTF_8)
+
+            writeInt(bytes.size)
+
+            write(bytes)
+
+        }
+
+        private fun DataInputStream.readString(): String {
+
+            val bytes = ByteArray(readInt())
+
+            readFully(bytes)
+
+            return String(bytes, Charsets.UTF_8)
+
+        }
+
+    }
+
+}
@@ -3,6 +3,27 @@ package td
 @Suppress("unused")
 object TdNative {
 
+    /**
+     * nekox 实际调用的实现, 默认为 JNI, 可替换为进程内实现 (如基准测试中的 nekox.bench.TdFakeNative).
+     * 需在创建第一个客户端之前设置.
+     */
+    @JvmStatic
+    var client: TdNativeClient = Jni
+
+    object Jni : TdNativeClient {
+
+        override fun createNativeClient() = TdNative.createNativeClient()
+
+        override fun nativeClientSend(nativeClientId: Long, eventId: Long, function: TdApi.Function) = TdNative.nativeClientSend(nativeClientId, eventId, function)
+
+        override fun nativeClientReceive(nativeClientId: Long, eventIds: LongArray, events: Array<TdApi.Object?>, timeout: Double) = TdNative.nativeClientReceive(nativeClientId, eventIds, events, timeout)
+
+        override fun nativeClientExecute(function: TdApi.Function) = TdNative.nativeClientExecute(function)
+
+        override fun destroyNativeClient(nativeClientId: Long) = TdNative.destroyNativeClient(nativeClientId)
+
+    }
+
     @JvmStatic
     external fun createNativeClient(): Long
 
@@ -18,4 +39,4 @@ object TdNative {
     @JvmStatic
     external fun destroyNativeClient(nativeClientId: Long)
 
-}
\ No newline at end of file
+}
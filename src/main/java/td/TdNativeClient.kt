@@ -0,0 +1,18 @@
+package td
+
+/**
+ * TDLib 客户端的底层接口, 与 [TdNative] 的 JNI 函数一一对应.
+ */
+interface TdNativeClient {
+
+    fun createNativeClient(): Long
+
+    fun nativeClientSend(nativeClientId: Long, eventId: Long, function: TdApi.Function)
+
+    fun nativeClientReceive(nativeClientId: Long, eventIds: LongArray, events: Array<TdApi.Object?>, timeout: Double): Int
+
+    fun nativeClientExecute(function: TdApi.Function): TdApi.Object
+
+    fun destroyNativeClient(nativeClientId: Long)
+
+}